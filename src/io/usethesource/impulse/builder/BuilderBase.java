@@ -11,12 +11,20 @@
 
 package io.usethesource.impulse.builder;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IMarker;
@@ -31,6 +39,7 @@ import org.eclipse.core.resources.IncrementalProjectBuilder;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.core.runtime.Path;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.jface.dialogs.MessageDialog;
@@ -93,6 +102,45 @@ public abstract class BuilderBase extends IncrementalProjectBuilder {
      */
     protected abstract void compile(IFile file, IProgressMonitor monitor);
 
+    /**
+     * Derived classes may override to indicate that <code>compile()</code> may be called
+     * concurrently for different files, in which case <code>compileNecessarySources()</code>
+     * compiles independent files in parallel. Files are only compiled after the files they
+     * depend upon (according to <code>fDependencyInfo</code>) have been compiled.<br>
+     * Parallel invocations of <code>compile()</code> run on threads other than the builder
+     * thread, which holds the build's scheduling rule. Hence they must not acquire any
+     * scheduling rule themselves, e.g. by calling <code>IWorkspace.run()</code> with a
+     * resource rule. Creating markers via <code>createMarker()</code> or via
+     * {@link MarkerCreatorWithBatching} is safe.
+     * @return true iff <code>compile()</code> is thread-safe; false by default
+     */
+    protected boolean isCompileThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Derived classes may override, together with <code>getInterfaceFingerprint()</code>,
+     * to avoid recompiling the dependents of a changed file when the change didn't affect
+     * the file's exported surface. Changed files are then compiled first, and dependents
+     * are only compiled once a file they depend upon turns out to have a new fingerprint.
+     * @return true iff <code>getInterfaceFingerprint()</code> is implemented; false by default
+     */
+    protected boolean supportsInterfaceFingerprints() {
+        return false;
+    }
+
+    /**
+     * Computes a hash of the exported surface of the given file, i.e. of everything in it
+     * that other compilation units can depend upon. Called right after <code>compile()</code>
+     * for source files, and directly for changed non-root source files (which are never
+     * compiled). Only used if <code>supportsInterfaceFingerprints()</code> returns true.
+     * @return the fingerprint, or null if it can't be determined, in which case all
+     * dependents of the file will be recompiled
+     */
+    protected String getInterfaceFingerprint(IFile file) {
+        return null;
+    }
+
     /**
      * Collects compilation-unit dependencies for the given file, and records
      * them via calls to <code>fDependency.addDependency()</code>.
@@ -129,6 +177,24 @@ public abstract class BuilderBase extends IncrementalProjectBuilder {
 
     private final Collection<IFile> fSourcesForDeps= new HashSet<IFile>();
 
+    /**
+     * The most recent interface fingerprint of each workspace-relative unit path, if
+     * <code>supportsInterfaceFingerprints()</code>
+     */
+    private final Map<String, String> fInterfaceFingerprints= new HashMap<String, String>();
+
+    /**
+     * The files whose interface changed, but whose dependents weren't all compiled because
+     * the build stopped early; the next build picks these up
+     */
+    private final Set<IFile> fUnpropagatedInterfaceChanges= new HashSet<IFile>();
+
+    /**
+     * The pool that compiles sources in parallel during the current build, if any; created
+     * when first needed, and shut down at the end of the build
+     */
+    private ForkJoinPool fCompilePool;
+
     private final class SourceDeltaVisitor implements IResourceDeltaVisitor {
         public boolean visit(IResourceDelta delta) throws CoreException {
             return processResource(delta.getResource());
@@ -197,6 +263,9 @@ public abstract class BuilderBase extends IncrementalProjectBuilder {
         boolean partialDeps= true;
         Collection<IFile> allSources= new ArrayList<IFile>();
 
+        if (fDependencyInfo == null && kind != FULL_BUILD && kind != CLEAN_BUILD) {
+            loadDependencyInfo();
+        }
         if (fDependencyInfo == null || kind == FULL_BUILD || kind == CLEAN_BUILD) {
             fDependencyInfo= createDependencyInfo(getProject());
             try {
@@ -206,15 +275,17 @@ public abstract class BuilderBase extends IncrementalProjectBuilder {
             }
             fSourcesForDeps.addAll(allSources);
             // Collect deps now, so we can compile everything necessary in the case where
-            // we have no dep info yet (e.g. first build for this Eclipse invocation --
-            // we don't persist the dep info yet) but we've been asked to do an auto build
-            // b/c of workspace changes.
+            // we have no dep info yet (e.g. first build for this project, or the persisted
+            // dep info was unusable) but we've been asked to do an auto build b/c of
+            // workspace changes.
             collectDependencies(monitor);
             partialDeps= false;
         }
 
         if (kind == FULL_BUILD || kind == CLEAN_BUILD) {
             clearMarkersOn(allSources);
+            fInterfaceFingerprints.clear();
+            fUnpropagatedInterfaceChanges.clear();
         }
 
         try {
@@ -226,17 +297,34 @@ public abstract class BuilderBase extends IncrementalProjectBuilder {
                 collectDependencies(monitor);
             }
             compileNecessarySources(monitor);
+            saveDependencyInfo();
             if (getDiagPreference()) {
                 getConsoleStream().print(fDependencyInfo.toString());
             }
         } catch (CoreException e) {
             getPlugin().writeErrorMsg("Build failed: " + e.getMessage());
+        } finally {
+            if (fCompilePool != null) {
+                fCompilePool.shutdown();
+                fCompilePool= null;
+            }
         }
         return new IProject[0];
     }
 
     protected void compileNecessarySources(IProgressMonitor monitor) {
-        for(Iterator<IFile> iter= fSourcesToCompile.iterator(); iter.hasNext(); ) {
+        compileSources(fSourcesToCompile, monitor);
+        if (supportsInterfaceFingerprints()) {
+            propagateInterfaceChanges(monitor);
+        }
+    }
+
+    private void compileSources(Collection<IFile> sources, IProgressMonitor monitor) {
+        if (isCompileThreadSafe() && sources.size() > 1) {
+            compileInParallel(sources, monitor);
+            return;
+        }
+        for(Iterator<IFile> iter= sources.iterator(); iter.hasNext(); ) {
             IFile srcFile= iter.next();
 
             clearMarkersOn(srcFile);
@@ -246,6 +334,242 @@ public abstract class BuilderBase extends IncrementalProjectBuilder {
         }
     }
 
+    /**
+     * Recompiles the dependents of the files whose interface fingerprint changed, then
+     * the dependents of those of them whose fingerprint changed, and so on. Non-root
+     * source files that depend upon a changed file are never compiled, so they pass
+     * the change on to their own dependents.<br>
+     * A file's new fingerprint is only recorded once its dependents have been compiled,
+     * so that a cancelled build leaves them to be compiled by the next one.
+     */
+    private void propagateInterfaceChanges(IProgressMonitor monitor) {
+        Set<IFile> compiled= new HashSet<IFile>(fSourcesToCompile);
+        Map<String, String> newFingerprints= new HashMap<String, String>();
+        Collection<IFile> changed= new ArrayList<IFile>();
+
+        compiled.addAll(fChangedSources);
+        for(IFile file: fUnpropagatedInterfaceChanges) {
+            if (file.exists()) {
+                compiled.add(file);
+            }
+        }
+        fUnpropagatedInterfaceChanges.clear();
+        for(IFile file: compiled) {
+            if (interfaceChanged(file, newFingerprints)) {
+                changed.add(file);
+            }
+        }
+        try {
+            propagateInterfaceChanges(changed, compiled, newFingerprints, monitor);
+        } finally {
+            // If the build stopped early, forget what is known about the files whose
+            // dependents weren't all compiled, so that the next build treats them as changed
+            for(IFile file: changed) {
+                fInterfaceFingerprints.remove(file.getFullPath().toString());
+                fUnpropagatedInterfaceChanges.add(file);
+            }
+        }
+    }
+
+    /**
+     * Does the work of {@link #propagateInterfaceChanges(IProgressMonitor)}. On return, the
+     * given collection holds the changed files whose dependents haven't been compiled,
+     * which is empty unless the build was cancelled.
+     */
+    private void propagateInterfaceChanges(Collection<IFile> changed, Set<IFile> compiled, Map<String, String> newFingerprints, IProgressMonitor monitor) {
+        while (!changed.isEmpty() && !monitor.isCanceled()) {
+            Collection<IFile> dependents= new HashSet<IFile>();
+
+            for(IFile file: changed) {
+                Set<String> depPaths= fDependencyInfo.getDependentsOf(file.getFullPath().toString());
+
+                if (depPaths != null) {
+                    for(String depPath: depPaths) {
+                        IFile depFile= getProject().getWorkspace().getRoot().getFile(new Path(depPath));
+
+                        if (compiled.add(depFile)) {
+                            dependents.add(depFile);
+                        }
+                    }
+                }
+            }
+            if (getDiagPreference() && !dependents.isEmpty()) {
+                getConsoleStream().println("Dependents affected by interface changes:");
+                dumpSourceList(dependents);
+            }
+            Collection<IFile> sourceDependents= new ArrayList<IFile>();
+
+            for(IFile file: dependents) {
+                if (isSourceFile(file)) {
+                    sourceDependents.add(file);
+                }
+            }
+            compileSources(sourceDependents, monitor);
+            if (monitor.isCanceled()) {
+                return;
+            }
+            for(IFile file: changed) {
+                recordFingerprint(file, newFingerprints);
+            }
+            changed.clear();
+            for(IFile file: dependents) {
+                if (!isSourceFile(file) || interfaceChanged(file, newFingerprints)) {
+                    changed.add(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the interface fingerprint of the given file differs from the one
+     * recorded, in which case the new one is put into the given map, to be recorded
+     * once the file's dependents have been compiled
+     */
+    private boolean interfaceChanged(IFile file, Map<String, String> newFingerprints) {
+        String path= file.getFullPath().toString();
+        String fingerprint= getInterfaceFingerprint(file);
+
+        if (fingerprint != null && fingerprint.equals(fInterfaceFingerprints.get(path))) {
+            return false;
+        }
+        newFingerprints.put(path, fingerprint);
+        return true;
+    }
+
+    private void recordFingerprint(IFile file, Map<String, String> newFingerprints) {
+        String path= file.getFullPath().toString();
+
+        if (newFingerprints.containsKey(path)) {
+            fInterfaceFingerprints.put(path, newFingerprints.remove(path));
+        }
+    }
+
+    private void compileInParallel(final Collection<IFile> sources, final IProgressMonitor monitor) {
+        // Clear all markers up front, on the builder thread, in a single workspace operation
+        IWorkspaceRunnable clearMarkers= new IWorkspaceRunnable() {
+            public void run(IProgressMonitor monitor) throws CoreException {
+                clearMarkersOn(sources);
+            }
+        };
+        try {
+            getProject().getWorkspace().run(clearMarkers, getProject(), IWorkspace.AVOID_UPDATE, null);
+        } catch (CoreException e) {
+            getPlugin().logException("Error while clearing markers before a build", e);
+        }
+
+        // Progress monitors aren't thread-safe; the compile tasks only get to see cancellation
+        final IProgressMonitor taskMonitor= new NullProgressMonitor() {
+            @Override
+            public boolean isCanceled() {
+                return monitor.isCanceled();
+            }
+        };
+        // Shared by all calls during a build, e.g. one per round of propagateInterfaceChanges()
+        if (fCompilePool == null) {
+            fCompilePool= new ForkJoinPool();
+        }
+        ForkJoinPool pool= fCompilePool;
+
+        try {
+            for(List<IFile> wave: computeCompilationWaves(sources)) {
+                List<Callable<Object>> tasks= new ArrayList<Callable<Object>>(wave.size());
+
+                for(final IFile srcFile: wave) {
+                    if (isSourceFile(srcFile)) {
+                        tasks.add(new Callable<Object>() {
+                            public Object call() {
+                                compile(srcFile, taskMonitor);
+                                return null;
+                            }
+                        });
+                    }
+                }
+                if (monitor.isCanceled()) {
+                    break;
+                }
+                for(Future<Object> result: pool.invokeAll(tasks)) {
+                    try {
+                        result.get();
+                    } catch (ExecutionException e) {
+                        getPlugin().logException("Error while compiling", e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Partitions the given sources into waves, such that every file comes after all files
+     * it depends upon. Files within a wave can be compiled concurrently. Files involved in
+     * a dependency cycle end up in a final wave of their own, and are compiled one at a time.
+     */
+    private List<List<IFile>> computeCompilationWaves(Collection<IFile> sources) {
+        Map<String, IFile> filesByPath= new HashMap<String, IFile>();
+        List<List<IFile>> waves= new ArrayList<List<IFile>>();
+
+        for(IFile srcFile: sources) {
+            filesByPath.put(srcFile.getFullPath().toString(), srcFile);
+        }
+        for(List<String> wavePaths: fDependencyInfo.getCompilationWaves(filesByPath.keySet())) {
+            List<IFile> wave= new ArrayList<IFile>(wavePaths.size());
+
+            for(String path: wavePaths) {
+                wave.add(filesByPath.get(path));
+            }
+            waves.add(wave);
+        }
+        return waves;
+    }
+
+    /**
+     * @return the file in this builder's plug-in state location that holds the persisted
+     * dependency info for the project being built
+     */
+    protected File getDependencyInfoFile() {
+        return getPlugin().getStateLocation().append(getProject().getName() + "." + getClass().getName() + ".deps").toFile();
+    }
+
+    /**
+     * Initializes <code>fDependencyInfo</code> from the dependency info persisted by a
+     * previous session, if any, and marks the source files that changed since then.
+     * Leaves <code>fDependencyInfo</code> null if there is no usable persisted info.
+     */
+    private void loadDependencyInfo() {
+        try {
+            File depsFile= getDependencyInfoFile();
+
+            if (!depsFile.exists()) {
+                return;
+            }
+            DependencyInfo depInfo= createDependencyInfo(getProject());
+
+            for(String stalePath: depInfo.load(depsFile)) {
+                IFile staleFile= getProject().getWorkspace().getRoot().getFile(new Path(stalePath));
+
+                if (staleFile.exists() && (isSourceFile(staleFile) || isNonRootSourceFile(staleFile))) {
+                    fChangedSources.add(staleFile);
+                }
+            }
+            fDependencyInfo= depInfo;
+        } catch (IOException e) {
+            getPlugin().logException("Unable to load dependency info for project " + getProject().getName(), e);
+        } catch (IllegalStateException e) {
+            // no state location available; just recompute the dependencies
+        }
+    }
+
+    private void saveDependencyInfo() {
+        try {
+            fDependencyInfo.save(getDependencyInfoFile());
+        } catch (IOException e) {
+            getPlugin().logException("Unable to save dependency info for project " + getProject().getName(), e);
+        } catch (IllegalStateException e) {
+            // no state location available; the dependencies will be recomputed next session
+        }
+    }
+
     protected void collectDependencies(IProgressMonitor monitor) {
         for(IFile srcFile: fSourcesForDeps) {
             collectDependencies(srcFile);
@@ -360,12 +684,18 @@ public abstract class BuilderBase extends IncrementalProjectBuilder {
             dumpSourceList(changeDependents);
         }
 
-        boolean changed= false;
-        do {
-            Collection<IFile> additions= new HashSet<IFile>();
-            scanSourceList(changeDependents, additions);
-            changed= changeDependents.addAll(additions);
-        } while (changed);
+        // With interface fingerprints, dependents are only compiled once it's known that
+        // the interface of a file they depend upon changed; see propagateInterfaceChanges().
+        if (!supportsInterfaceFingerprints()) {
+            Collection<String> changedPaths= new ArrayList<String>(fChangedSources.size());
+
+            for(IFile f: fChangedSources) {
+                changedPaths.add(f.getFullPath().toString());
+            }
+            for(String depPath: fDependencyInfo.getTransitiveDependentsOf(changedPaths)) {
+                changeDependents.add(getProject().getWorkspace().getRoot().getFile(new Path(depPath)));
+            }
+        }
 
         for(IFile f: changeDependents) {
             if (isSourceFile(f)) {
@@ -376,24 +706,6 @@ public abstract class BuilderBase extends IncrementalProjectBuilder {
 //      dumpSourceList(fSourcesToCompile);
     }
 
-    private boolean scanSourceList(Collection<IFile> srcList, Collection<IFile> changeDependents) {
-        boolean result= false;
-        for(Iterator<IFile> iter= srcList.iterator(); iter.hasNext(); ) {
-            IFile srcFile= iter.next();
-            Set<String> fileDependents= fDependencyInfo.getDependentsOf(srcFile.getFullPath().toString());
-
-            if (fileDependents != null) {
-                for(Iterator<String> iterator= fileDependents.iterator(); iterator.hasNext(); ) {
-                    String depPath= iterator.next();
-                    IFile depFile= getProject().getWorkspace().getRoot().getFile(new Path(depPath));
-
-                    result= result || changeDependents.add(depFile);
-                }
-            }
-        }
-        return result;
-    }
-
     /**
      * Refreshes all resources in the entire project tree containing the given resource.
      * Crude but effective.
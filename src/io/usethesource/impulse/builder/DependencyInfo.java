@@ -12,30 +12,92 @@
 
 package io.usethesource.impulse.builder;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
+import org.eclipse.core.runtime.Path;
 
 /**
  * Tracks dependencies among compilation units in a given project.<br>
+ * Unit paths are interned to integer IDs, and the dependency graph is kept as sorted
+ * int adjacency lists in both directions, so that queries over large graphs don't
+ * spend their time hashing path strings.
  * @author rfuhrer@watson.ibm.com
  */
 public class DependencyInfo {
-    protected final Map<String /*unitPath*/, Set<String /*unitPath*/>> fDependsUpon= new HashMap<String,Set<String>>();
-    protected final Map<String /*unitPath*/, Set<String /*unitPath*/>> fIsDependedUponBy= new HashMap<String,Set<String>>();
+    /**
+     * Maps workspace-relative unit paths to their IDs, which index the lists below
+     */
+    private final Map<String /*unitPath*/, Integer> fUnitIDs= new HashMap<String, Integer>();
+    private final List<String /*unitPath*/> fUnitPaths= new ArrayList<String>();
+    private final List<IntSet> fDependsUponIDs= new ArrayList<IntSet>();
+    private final List<IntSet> fIsDependedUponByIDs= new ArrayList<IntSet>();
+
+    /**
+     * A live view of the units each unit depends upon, by workspace-relative unit path.
+     * Adding to or removing from the view's entries adds or removes dependencies.
+     * @deprecated use {@link #addDependency(String, String)} and {@link #getDependencies()}
+     */
+    @Deprecated
+    protected final Map<String /*unitPath*/, Set<String /*unitPath*/>> fDependsUpon= new DependencyMapView(true);
+
+    /**
+     * A live view of the units that depend upon each unit, by workspace-relative unit path.
+     * Adding to or removing from the view's entries adds or removes dependencies.
+     * @deprecated use {@link #addDependency(String, String)} and {@link #getDependentsOf(String)}
+     */
+    @Deprecated
+    protected final Map<String /*unitPath*/, Set<String /*unitPath*/>> fIsDependedUponBy= new DependencyMapView(false);
+
+    private final Map<String, Set<String>> fDependenciesView= Collections.unmodifiableMap(fDependsUpon);
+
     protected final IProject fProject;
     protected final String fWorkspacePath;
 
+    /**
+     * Identifies files written by {@link #save(File)}; spells "IMPD".
+     */
+    private static final int FORMAT_MAGIC= 0x494d5044;
+
+    /**
+     * Incremented whenever the format written by {@link #save(File)} changes.
+     */
+    private static final int FORMAT_VERSION= 1;
+
     public DependencyInfo(IProject project) {
         fProject= project;
         fWorkspacePath= fProject.getProject().getWorkspace().getRoot().getLocation().toString();
     }
 
+    /**
+     * @deprecated the maps of this class are views; use {@link #getDependencies()} or
+     * {@link #getDependentsOf(String)} instead
+     */
+    @Deprecated
     protected Set<String /*unitPath*/> getEntry(Map<String /*unitPath*/, Set<String /*unitPath*/>> map, String unitPath) {
         Set<String> result;
 
@@ -46,29 +108,61 @@ public class DependencyInfo {
         return result;
     }
 
+    /**
+     * @deprecated the maps of this class are views; use {@link #addDependency(String, String)}
+     * instead
+     */
+    @Deprecated
     protected Set<String> getOrCreateEntry(Map<String,Set<String>> map, String unitPath) {
         Set<String> result;
 
-        if (!map.containsKey(unitPath))
+        if (map instanceof DependencyMapView) {
+            result= ((DependencyMapView) map).getOrCreate(unitPath);
+        } else if (!map.containsKey(unitPath))
             map.put(unitPath, result= new HashSet<String>());
         else
             result= (Set<String>) map.get(unitPath);
         return result;
     }
 
+    /**
+     * @return the ID of the given unit, or -1 if it's not known
+     */
+    protected int getUnitID(String unitPath) {
+        Integer id= fUnitIDs.get(unitPath);
+
+        return (id != null) ? id : -1;
+    }
+
+    protected int getOrCreateUnitID(String unitPath) {
+        Integer id= fUnitIDs.get(unitPath);
+
+        if (id == null) {
+            id= fUnitPaths.size();
+            fUnitIDs.put(unitPath, id);
+            fUnitPaths.add(unitPath);
+            fDependsUponIDs.add(new IntSet());
+            fIsDependedUponByIDs.add(new IntSet());
+        }
+        return id;
+    }
+
     /**
      * Records a dependency between the two compilation units.
      * @param fromPath a compilation unit path; should be workspace-relative
      * @param uponPath a compilation unit path; should be workspace-relative
      */
     public void addDependency(String fromPath, String uponPath) {
-        Set<String> fwdEntry= getOrCreateEntry(fDependsUpon, fromPath);
-
-        fwdEntry.add(uponPath);
+        int fromID= getOrCreateUnitID(fromPath);
+        int uponID= getOrCreateUnitID(uponPath);
 
-        Set<String> bkwdEntry= getOrCreateEntry(fIsDependedUponBy, uponPath);
+        fDependsUponIDs.get(fromID).add(uponID);
+        fIsDependedUponByIDs.get(uponID).add(fromID);
+    }
 
-        bkwdEntry.add(fromPath);
+    private void removeDependency(int fromID, int uponID) {
+        fDependsUponIDs.get(fromID).remove(uponID);
+        fIsDependedUponByIDs.get(uponID).remove(fromID);
     }
 
     /**
@@ -76,8 +170,10 @@ public class DependencyInfo {
      * this DependencyInfo instance.
      */
     public void clearAllDependencies() {
-        fDependsUpon.clear();
-        fIsDependedUponBy.clear();
+        fUnitIDs.clear();
+        fUnitPaths.clear();
+        fDependsUponIDs.clear();
+        fIsDependedUponByIDs.clear();
     }
 
     /**
@@ -85,33 +181,272 @@ public class DependencyInfo {
      * @param unitPath should be workspace-relative
      */
     public void clearDependenciesOf(String unitPath) {
-        Set<String> entry= getEntry(fDependsUpon, unitPath);
+        int unitID= getUnitID(unitPath);
 
-        fDependsUpon.put(unitPath, new HashSet<String>());
-        for(Iterator<String> iter= entry.iterator(); iter.hasNext(); ) {
-            String uponPath= (String) iter.next();
-            Set<String> uponSet= getEntry(fIsDependedUponBy, uponPath);
+        if (unitID < 0) {
+            return;
+        }
+        IntSet entry= fDependsUponIDs.get(unitID);
 
-            uponSet.remove(unitPath);
+        for(int i= 0; i < entry.size(); i++) {
+            fIsDependedUponByIDs.get(entry.get(i)).remove(unitID);
         }
+        entry.clear();
     }
 
     /**
-     * @return a Map from workspace-relative unit paths to Sets of dependent
-     * workspace-relative unit paths
+     * @return a live, unmodifiable view that maps workspace-relative unit paths to Sets
+     * of the workspace-relative unit paths they depend upon
      */
     public Map<String /*path*/, Set<String /*path*/>> getDependencies() {
-        return Collections.unmodifiableMap(fDependsUpon);
+        return fDependenciesView;
     }
 
     /**
      * @param unitPath should be workspace-relative
-     * @return a Set of dependent workspace--relative unit paths
+     * @return a live view of the Set of dependent workspace--relative unit paths, or
+     * null if nothing is known about the given unit
      */
     public Set<String /*path*/> getDependentsOf(String unitPath) {
         return fIsDependedUponBy.get(unitPath);
     }
 
+    /**
+     * Computes, in a single breadth-first traversal, the given units together with all
+     * units that depend upon them, directly or indirectly.
+     * @param unitPaths should be workspace-relative
+     * @return a Set of workspace-relative unit paths that includes the given ones
+     */
+    public Set<String /*path*/> getTransitiveDependentsOf(Collection<String /*path*/> unitPaths) {
+        Set<String> result= new HashSet<String>(unitPaths);
+        BitSet visited= new BitSet(fUnitPaths.size());
+        int[] queue= new int[fUnitPaths.size()];
+        int head= 0, tail= 0;
+
+        for(String unitPath: unitPaths) {
+            int unitID= getUnitID(unitPath);
+
+            if (unitID >= 0 && !visited.get(unitID)) {
+                visited.set(unitID);
+                queue[tail++]= unitID;
+            }
+        }
+        while (head < tail) {
+            IntSet dependents= fIsDependedUponByIDs.get(queue[head++]);
+
+            for(int i= 0; i < dependents.size(); i++) {
+                int depID= dependents.get(i);
+
+                if (!visited.get(depID)) {
+                    visited.set(depID);
+                    queue[tail++]= depID;
+                    result.add(fUnitPaths.get(depID));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Orders the given units such that every unit comes after all of the given units it
+     * depends upon, using Kahn's algorithm over the ID graph, in time linear in the
+     * number of given units and their dependencies.
+     * @param unitPaths should be workspace-relative
+     * @return the given units, partitioned into waves whose units only depend upon units
+     * in earlier waves. Units that are part of, or depend upon, a dependency cycle come
+     * last, one per wave.
+     */
+    public List<List<String /*path*/>> getCompilationWaves(Collection<String /*path*/> unitPaths) {
+        String[] paths= new LinkedHashSet<String>(unitPaths).toArray(new String[0]);
+        int numUnits= paths.length;
+        int[] unitIDs= new int[numUnits];
+        int[] localIndex= new int[fUnitPaths.size()];
+        int[] inDegree= new int[numUnits];
+
+        Arrays.fill(localIndex, -1);
+        for(int i= 0; i < numUnits; i++) {
+            unitIDs[i]= getUnitID(paths[i]);
+            if (unitIDs[i] >= 0) {
+                localIndex[unitIDs[i]]= i;
+            }
+        }
+        for(int i= 0; i < numUnits; i++) {
+            if (unitIDs[i] >= 0) {
+                IntSet upon= fDependsUponIDs.get(unitIDs[i]);
+
+                for(int k= 0; k < upon.size(); k++) {
+                    if (upon.get(k) != unitIDs[i] && localIndex[upon.get(k)] >= 0) {
+                        inDegree[i]++;
+                    }
+                }
+            }
+        }
+
+        List<List<String>> waves= new ArrayList<List<String>>();
+        int[] wave= new int[numUnits];
+        int[] nextWave= new int[numUnits];
+        int waveSize= 0;
+        int numOrdered= 0;
+
+        for(int i= 0; i < numUnits; i++) {
+            if (inDegree[i] == 0) {
+                wave[waveSize++]= i;
+            }
+        }
+        while (waveSize > 0) {
+            List<String> wavePaths= new ArrayList<String>(waveSize);
+            int nextSize= 0;
+
+            for(int k= 0; k < waveSize; k++) {
+                int i= wave[k];
+
+                wavePaths.add(paths[i]);
+                if (unitIDs[i] < 0) {
+                    continue;
+                }
+                IntSet dependents= fIsDependedUponByIDs.get(unitIDs[i]);
+
+                for(int d= 0; d < dependents.size(); d++) {
+                    int j= (dependents.get(d) != unitIDs[i]) ? localIndex[dependents.get(d)] : -1;
+
+                    if (j >= 0 && --inDegree[j] == 0) {
+                        nextWave[nextSize++]= j;
+                    }
+                }
+            }
+            waves.add(wavePaths);
+            numOrdered+= waveSize;
+
+            int[] tmp= wave;
+            wave= nextWave;
+            nextWave= tmp;
+            waveSize= nextSize;
+        }
+        if (numOrdered < numUnits) {
+            for(int i= 0; i < numUnits; i++) {
+                if (inDegree[i] > 0) {
+                    waves.add(Collections.singletonList(paths[i]));
+                }
+            }
+        }
+        return waves;
+    }
+
+    /**
+     * Writes all dependencies to the given file, along with the modification stamp of
+     * each compilation unit, so that {@link #load(File)} can detect units that changed
+     * after the dependencies were saved. The file is written under a temporary name
+     * first, and then renamed, so that a crash never leaves a partially written file.
+     */
+    public void save(File file) throws IOException {
+        File tmpFile= new File(file.getPath() + ".tmp");
+        DataOutputStream out= new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+
+        try {
+            out.writeInt(FORMAT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(fUnitPaths.size());
+            for(String unit: fUnitPaths) {
+                out.writeUTF(unit);
+                out.writeLong(getUnitFile(unit).getModificationStamp());
+            }
+            out.writeInt(fDependsUponIDs.size());
+            for(int id= 0; id < fDependsUponIDs.size(); id++) {
+                IntSet entry= fDependsUponIDs.get(id);
+
+                out.writeInt(id);
+                out.writeInt(entry.size());
+                for(int i= 0; i < entry.size(); i++) {
+                    out.writeInt(entry.get(i));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        try {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Replaces all dependencies by the ones previously saved to the given file by
+     * {@link #save(File)}. The dependencies of compilation units that were modified or
+     * removed since they were saved are dropped.
+     * @return the workspace-relative paths of the compilation units that were modified
+     * or removed since the dependencies were saved
+     * @throws IOException if the file can't be read, is corrupt, or was written in an
+     * unknown format; no dependencies are known afterwards in the latter two cases
+     */
+    public Set<String /*path*/> load(File file) throws IOException {
+        Set<String> staleUnits= new HashSet<String>();
+        // Reading from memory lets available() tell how many bytes remain, to check counts against
+        DataInputStream in= new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+
+        try {
+            if (in.readInt() != FORMAT_MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown dependency info format in " + file);
+            }
+            clearAllDependencies();
+
+            // Each unit takes at least a string length and a stamp
+            int numUnits= checkCount(in.readInt(), in.available() / 10, file);
+            boolean[] stale= new boolean[numUnits];
+
+            for(int i= 0; i < numUnits; i++) {
+                String unit= in.readUTF();
+                long stamp= in.readLong();
+                IFile unitFile= getUnitFile(unit);
+
+                getOrCreateUnitID(unit);
+                if (!unitFile.exists() || unitFile.getModificationStamp() != stamp) {
+                    stale[i]= true;
+                    staleUnits.add(unit);
+                }
+            }
+
+            // Each entry takes at least an ID and a count
+            int numEntries= checkCount(in.readInt(), in.available() / 8, file);
+
+            for(int i= 0; i < numEntries; i++) {
+                int fromID= checkCount(in.readInt(), numUnits - 1, file);
+                int numUpon= checkCount(in.readInt(), in.available() / 4, file);
+
+                for(int j= 0; j < numUpon; j++) {
+                    int uponID= checkCount(in.readInt(), numUnits - 1, file);
+
+                    if (!stale[fromID]) {
+                        fDependsUponIDs.get(fromID).add(uponID);
+                        fIsDependedUponByIDs.get(uponID).add(fromID);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            clearAllDependencies();
+            throw e;
+        } finally {
+            in.close();
+        }
+        return staleUnits;
+    }
+
+    /**
+     * @return the given count or ID read from the given file, if it lies between 0 and
+     * the given maximum
+     * @throws IOException if it doesn't, in which case the file is corrupt
+     */
+    private static int checkCount(int value, int max, File file) throws IOException {
+        if (value < 0 || value > max) {
+            throw new IOException("Corrupt dependency info in " + file);
+        }
+        return value;
+    }
+
+    private IFile getUnitFile(String unitPath) {
+        return fProject.getWorkspace().getRoot().getFile(new Path(unitPath));
+    }
+
     public void dump() {
         System.out.print(toString());
     }
@@ -120,19 +455,216 @@ public class DependencyInfo {
     public String toString() {
         StringBuilder sb= new StringBuilder();
         sb.append("*** Dependencies ***:\n");
-        for(Iterator<String> iter= fDependsUpon.keySet().iterator(); iter.hasNext(); ) {
-            String unit= iter.next();
-            Set<String /*path*/> dependents= fDependsUpon.get(unit);
-    
-            sb.append("Unit " + unit + ": \n");
-            for(Iterator<String> iterator= dependents.iterator(); iterator.hasNext(); ) {
-                String uponUnit= iterator.next();
+        for(int id= 0; id < fUnitPaths.size(); id++) {
+            IntSet dependents= fDependsUponIDs.get(id);
+
+            sb.append("Unit " + fUnitPaths.get(id) + ": \n");
+            for(int i= 0; i < dependents.size(); i++) {
                 sb.append("  ");
-                sb.append(uponUnit);
-                if (iterator.hasNext()) sb.append(", ");
+                sb.append(fUnitPaths.get(dependents.get(i)));
+                if (i + 1 < dependents.size()) sb.append(", ");
             }
             sb.append("\n");
         }
         return sb.toString();
     }
+
+    /**
+     * Presents one direction of the dependency graph as a Map from unit paths to Sets of
+     * unit paths, for the deprecated protected fields. Every known unit is a key.
+     */
+    private final class DependencyMapView extends AbstractMap<String, Set<String>> {
+        private final boolean fForward;
+
+        public DependencyMapView(boolean forward) {
+            fForward= forward;
+        }
+
+        public Set<String> getOrCreate(String unitPath) {
+            return new EntryView(getOrCreateUnitID(unitPath), fForward);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return (key instanceof String) && getUnitID((String) key) >= 0;
+        }
+
+        @Override
+        public Set<String> get(Object key) {
+            int unitID= (key instanceof String) ? getUnitID((String) key) : -1;
+
+            return (unitID >= 0) ? new EntryView(unitID, fForward) : null;
+        }
+
+        @Override
+        public int size() {
+            return fUnitPaths.size();
+        }
+
+        /**
+         * Clears all dependencies, in both directions.
+         */
+        @Override
+        public void clear() {
+            clearAllDependencies();
+        }
+
+        @Override
+        public Set<Map.Entry<String, Set<String>>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Set<String>>>() {
+                @Override
+                public int size() {
+                    return fUnitPaths.size();
+                }
+
+                @Override
+                public Iterator<Map.Entry<String, Set<String>>> iterator() {
+                    return new Iterator<Map.Entry<String, Set<String>>>() {
+                        private int fNext= 0;
+
+                        public boolean hasNext() {
+                            return fNext < fUnitPaths.size();
+                        }
+
+                        public Map.Entry<String, Set<String>> next() {
+                            int unitID= fNext++;
+
+                            return new AbstractMap.SimpleImmutableEntry<String, Set<String>>(fUnitPaths.get(unitID), new EntryView(unitID, fForward));
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * The units that a given unit depends upon (forward), or that depend upon it.
+     */
+    private final class EntryView extends AbstractSet<String> {
+        private final int fUnitID;
+
+        private final boolean fForward;
+
+        public EntryView(int unitID, boolean forward) {
+            fUnitID= unitID;
+            fForward= forward;
+        }
+
+        private IntSet getIDs() {
+            return (fForward ? fDependsUponIDs : fIsDependedUponByIDs).get(fUnitID);
+        }
+
+        @Override
+        public int size() {
+            return getIDs().size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            int otherID= (o instanceof String) ? getUnitID((String) o) : -1;
+
+            return otherID >= 0 && getIDs().contains(otherID);
+        }
+
+        @Override
+        public boolean add(String unitPath) {
+            int otherID= getOrCreateUnitID(unitPath);
+
+            if (getIDs().contains(otherID)) {
+                return false;
+            }
+            if (fForward) {
+                addDependency(fUnitPaths.get(fUnitID), unitPath);
+            } else {
+                addDependency(unitPath, fUnitPaths.get(fUnitID));
+            }
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            int otherID= (o instanceof String) ? getUnitID((String) o) : -1;
+
+            if (otherID < 0 || !getIDs().contains(otherID)) {
+                return false;
+            }
+            if (fForward) {
+                removeDependency(fUnitID, otherID);
+            } else {
+                removeDependency(otherID, fUnitID);
+            }
+            return true;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int fNext= 0;
+
+                public boolean hasNext() {
+                    return fNext < getIDs().size();
+                }
+
+                public String next() {
+                    return fUnitPaths.get(getIDs().get(fNext++));
+                }
+
+                public void remove() {
+                    EntryView.this.remove(fUnitPaths.get(getIDs().get(--fNext)));
+                }
+            };
+        }
+    }
+
+    /**
+     * A set of unit IDs, kept as a sorted array.
+     */
+    private static final class IntSet {
+        private int[] fElements= new int[4];
+        private int fSize;
+
+        public int size() {
+            return fSize;
+        }
+
+        public int get(int index) {
+            return fElements[index];
+        }
+
+        public void add(int element) {
+            int pos= Arrays.binarySearch(fElements, 0, fSize, element);
+
+            if (pos >= 0) {
+                return;
+            }
+            pos= -(pos + 1);
+            if (fSize == fElements.length) {
+                fElements= Arrays.copyOf(fElements, fSize * 2);
+            }
+            System.arraycopy(fElements, pos, fElements, pos + 1, fSize - pos);
+            fElements[pos]= element;
+            fSize++;
+        }
+
+        public boolean contains(int element) {
+            return Arrays.binarySearch(fElements, 0, fSize, element) >= 0;
+        }
+
+        public void remove(int element) {
+            int pos= Arrays.binarySearch(fElements, 0, fSize, element);
+
+            if (pos >= 0) {
+                System.arraycopy(fElements, pos + 1, fElements, pos, fSize - pos - 1);
+                fSize--;
+            }
+        }
+
+        public void clear() {
+            fSize= 0;
+        }
+    }
 }
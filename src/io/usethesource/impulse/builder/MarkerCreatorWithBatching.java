@@ -32,6 +32,8 @@ import org.eclipse.core.runtime.NullProgressMonitor;
 import io.usethesource.impulse.builder.ProblemLimit.LimitExceededException;
 import io.usethesource.impulse.core.ErrorHandler;
 import io.usethesource.impulse.parser.IParseController;
+import io.usethesource.impulse.runtime.MetricsRegistry;
+import io.usethesource.impulse.runtime.RuntimePlugin;
 
 /**
  * An implementation of IMessageHandler for collecting messages over time
@@ -49,6 +51,7 @@ public class MarkerCreatorWithBatching extends MarkerCreator {
     protected Map<Integer, List<Map<String, Object>>> entries = null; // Map of line number to list of marker attributes for line
     protected ProblemLimit problemLimit = null;
     protected BuilderBase builder = null;
+    protected String languageName = null; // only used to attribute flush timings
 
     // TODO Make these private and final
     public String BUILDER_ID;
@@ -87,6 +90,7 @@ public class MarkerCreatorWithBatching extends MarkerCreator {
      */
     public MarkerCreatorWithBatching(IFile file, IParseController parseController, String problemType) {
         super(file, problemType);
+        setLanguageName(parseController);
         BUILDER_ID = null;
         PROBLEM_MARKER_ID = problemType;
     }
@@ -105,11 +109,18 @@ public class MarkerCreatorWithBatching extends MarkerCreator {
      */
     public MarkerCreatorWithBatching(IFile file, IParseController parseController, BuilderBase builder) {
         super(file, builder.getErrorMarkerID());
+        setLanguageName(parseController);
         this.builder = builder;
         BUILDER_ID = builder.getBuilderID();
         PROBLEM_MARKER_ID = builder.getErrorMarkerID();
     }
 
+    private void setLanguageName(IParseController parseController) {
+        if (parseController != null && parseController.getLanguage() != null) {
+            languageName = parseController.getLanguage().getName();
+        }
+    }
+
     public void setSeverityMap(Map<Integer, Integer>  mapOfSeverities) {
         // TODO:  Figure out what to do about target severities that do not correspond
         // to  marker severities
@@ -171,6 +182,7 @@ public class MarkerCreatorWithBatching extends MarkerCreator {
         //  a) since many rebuilds generate the same errors
         //  b) to avoid a marker being deleted by a refreshMarkers on editor entry before
         //     gotoMarker is invoked to go to a pre-existing context.
+        long start = System.nanoTime();
         if (file.exists()) {
             IWorkspaceRunnable action = new IWorkspaceRunnable() {
                 public void run(IProgressMonitor monitor) throws CoreException {
@@ -206,11 +218,13 @@ public class MarkerCreatorWithBatching extends MarkerCreator {
                 // TODO:  Allow for the introduction of a non-null progress monitor
 //              IProgressMonitor progressMonitor = monitor != null ? BasicMonitor.toIProgressMonitor(monitor) : new NullProgressMonitor();
                 IProgressMonitor progressMonitor = new NullProgressMonitor();
-                file.getWorkspace().run(action, file, IWorkspace.AVOID_UPDATE, progressMonitor);
+                // Only lock what marker operations need, so that this is also safe from parallel compiles
+                file.getWorkspace().run(action, file.getWorkspace().getRuleFactory().markerRule(file), IWorkspace.AVOID_UPDATE, progressMonitor);
             } catch (CoreException e) {
                 ErrorHandler.logError("Failed to update file markers", e);
             }
         }
+        RuntimePlugin.getMetricsRegistry().recordTime(MetricsRegistry.MARKER_FLUSH_TIME, languageName, file.getFullPath(), start);
     }
 
     public void handleSimpleMessage(
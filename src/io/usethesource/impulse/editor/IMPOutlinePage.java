@@ -11,6 +11,15 @@
 
 package io.usethesource.impulse.editor;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.jface.action.Action;
 import org.eclipse.jface.action.IToolBarManager;
@@ -21,7 +30,10 @@ import org.eclipse.jface.viewers.SelectionChangedEvent;
 import org.eclipse.jface.viewers.TreeViewer;
 import org.eclipse.jface.viewers.Viewer;
 import org.eclipse.jface.viewers.ViewerComparator;
+import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.BusyIndicator;
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.ImageData;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.ui.IActionBars;
 import org.eclipse.ui.IEditorPart;
@@ -31,14 +43,14 @@ import org.eclipse.ui.texteditor.ITextEditor;
 import org.eclipse.ui.views.contentoutline.ContentOutlinePage;
 
 import io.usethesource.impulse.editor.OutlineLabelProvider.IElementImageProvider;
-import io.usethesource.impulse.parser.IModelListener;
+import io.usethesource.impulse.parser.IIndependentModelListener;
 import io.usethesource.impulse.parser.IParseController;
 import io.usethesource.impulse.parser.ISourcePositionLocator;
 import io.usethesource.impulse.runtime.RuntimePlugin;
 import io.usethesource.impulse.services.IEntityNameLocator;
 import io.usethesource.impulse.services.base.TreeModelBuilderBase;
 
-public class IMPOutlinePage extends ContentOutlinePage implements IModelListener {
+public class IMPOutlinePage extends ContentOutlinePage implements IIndependentModelListener {
     private final OutlineContentProviderBase fContentProvider;
     private final TreeModelBuilderBase fModelBuilder;
     private final ILabelProvider fLabelProvider;
@@ -46,6 +58,13 @@ public class IMPOutlinePage extends ContentOutlinePage implements IModelListener
     private final IRegionSelectionService regionSelector;
     private final IEntityNameLocator fNameLocator;
 
+    /**
+     * The label keys of the nodes shown, or once shown, by the viewer (weakly, so that the
+     * keys of removed nodes are dropped); only accessed on the UI thread. See
+     * {@link #getLabelKey(ModelTreeNode)}.
+     */
+    private final Map<ModelTreeNode, String> fLabelKeys= new WeakHashMap<ModelTreeNode, String>();
+
     /**
      * Constructor flavor introduced for backward-compatibility with clients that extend this
      * class but do not furnish an IEntityNameLocator.
@@ -90,20 +109,270 @@ public class IMPOutlinePage extends ContentOutlinePage implements IModelListener
                 ModelTreeNode node= (ModelTreeNode) element;
                 return node.getParent();
             }
+            public boolean hasChildren(Object element) {
+                // Don't compute lazy children just to decide whether to show an expand button
+                ModelTreeNode node= (ModelTreeNode) element;
+                return node.hasChildren();
+            }
         };
     }
 
     public void update(final IParseController parseController, IProgressMonitor monitor) {
         if (getTreeViewer() != null && !getTreeViewer().getTree().isDisposed()) {
+            // Build the new tree and label its nodes here, rather than on the UI thread
+            final ModelTreeNode newRoot= buildTree();
+            final Map<ModelTreeNode, String> newLabelKeys= new IdentityHashMap<ModelTreeNode, String>();
+
+            computeLabelKeys(newRoot, newLabelKeys, monitor);
+            if (monitor.isCanceled()) {
+                return;
+            }
             getTreeViewer().getTree().getDisplay().asyncExec(new Runnable() {
                 public void run() {
-                	if (getTreeViewer() != null && !getTreeViewer().getTree().isDisposed())
-                		getTreeViewer().setInput(fModelBuilder.buildTree(fParseController.getCurrentAst()));
+                    if (getTreeViewer() != null && !getTreeViewer().getTree().isDisposed()) {
+                        fLabelKeys.putAll(newLabelKeys);
+                        refreshTree(newRoot);
+                    }
                 }
             });
         }
     }
 
+    private ModelTreeNode buildTree() {
+        return fModelBuilder.buildTree(fParseController.getCurrentAst());
+    }
+
+    /**
+     * Computes the label keys of the given node's descendants, as far as they have been
+     * built already (lazy sub-items are left alone), for use by {@link #refreshTree(ModelTreeNode)}.
+     */
+    private void computeLabelKeys(ModelTreeNode node, Map<ModelTreeNode, String> labelKeys, IProgressMonitor monitor) {
+        if (!node.hasComputedChildren() || monitor.isCanceled()) {
+            return;
+        }
+        for(ModelTreeNode child: node.getChildren()) {
+            labelKeys.put(child, getKey(child));
+            computeLabelKeys(child, labelKeys, monitor);
+        }
+    }
+
+    @Override
+    protected int getTreeStyle() {
+        // Only create tree items for the elements that are actually visible
+        return super.getTreeStyle() | SWT.VIRTUAL;
+    }
+
+    /**
+     * Makes the tree viewer show the given tree, by updating the tree it currently shows
+     * in place: nodes that match a node of the new tree keep their tree item, and with it
+     * their expansion and selection state. Only the differences are passed on to the viewer.
+     */
+    private void refreshTree(ModelTreeNode newRoot) {
+        TreeViewer viewer= getTreeViewer();
+        ModelTreeNode oldRoot= (ModelTreeNode) viewer.getInput();
+
+        if (oldRoot == null) {
+            viewer.setInput(newRoot);
+            return;
+        }
+        TreeDelta delta= new TreeDelta();
+
+        oldRoot.setASTNode(newRoot.getASTNode());
+        diffChildren(oldRoot, newRoot, delta);
+
+        if (delta.isEmpty()) {
+            return;
+        }
+        viewer.getTree().setRedraw(false);
+        try {
+            if (!delta.removed.isEmpty()) {
+                viewer.remove(delta.removed.toArray());
+            }
+            // In order of increasing index per parent, so that each index is valid when it is used
+            for(Insertion insertion: delta.inserted) {
+                viewer.insert(insertion.parent, insertion.child, insertion.index);
+            }
+            if (!delta.changed.isEmpty()) {
+                viewer.update(delta.changed.toArray(), null);
+            }
+            for(ModelTreeNode node: delta.adopted) {
+                viewer.refresh(node, false);
+            }
+        } finally {
+            viewer.getTree().setRedraw(true);
+        }
+    }
+
+    private static class TreeDelta {
+        final List<ModelTreeNode> removed= new ArrayList<ModelTreeNode>();
+        final List<Insertion> inserted= new ArrayList<Insertion>();
+        final List<ModelTreeNode> changed= new ArrayList<ModelTreeNode>();
+        /**
+         * Collapsed nodes that took over the children of their counterpart, so that any
+         * items the viewer still has for their old children are out of date
+         */
+        final List<ModelTreeNode> adopted= new ArrayList<ModelTreeNode>();
+        /**
+         * The keys of the images seen so far; see {@link IMPOutlinePage#getImageKey(ModelTreeNode, TreeDelta)}
+         */
+        final Map<Image, Object> imageKeys= new IdentityHashMap<Image, Object>();
+
+        boolean isEmpty() {
+            return removed.isEmpty() && inserted.isEmpty() && changed.isEmpty() && adopted.isEmpty();
+        }
+    }
+
+    private static class Insertion {
+        final ModelTreeNode parent;
+        final ModelTreeNode child;
+        final int index;
+
+        Insertion(ModelTreeNode parent, ModelTreeNode child, int index) {
+            this.parent= parent;
+            this.child= child;
+            this.index= index;
+        }
+    }
+
+    /**
+     * Updates the children of the given old node to match those of the given new node.
+     * Children are matched by AST node identity first, then by category and label, in order.
+     * Matched old children are kept, and take over the AST node of their counterpart.
+     * Only the subtrees of expanded children are diffed; collapsed children simply take
+     * over the children of their counterpart. The label keys used for matching were
+     * computed along with the new tree; only the images of children that were matched by
+     * label are compared here.
+     */
+    private void diffChildren(ModelTreeNode oldParent, ModelTreeNode newParent, TreeDelta delta) {
+        ModelTreeNode[] oldChildren= oldParent.getChildren();
+        ModelTreeNode[] newChildren= newParent.getChildren();
+        Map<Object, ModelTreeNode> byASTNode= new IdentityHashMap<Object, ModelTreeNode>(oldChildren.length);
+        Map<ModelTreeNode, Boolean> unmatched= new IdentityHashMap<ModelTreeNode, Boolean>(oldChildren.length);
+        // The old children by label; computed when first needed
+        Map<String, LinkedList<ModelTreeNode>> byLabel= null;
+
+        for(ModelTreeNode oldChild: oldChildren) {
+            byASTNode.put(oldChild.getASTNode(), oldChild);
+            unmatched.put(oldChild, Boolean.TRUE);
+        }
+
+        ModelTreeNode[] children= new ModelTreeNode[newChildren.length];
+        List<Insertion> inserted= new ArrayList<Insertion>();
+
+        for(int i= 0; i < newChildren.length; i++) {
+            ModelTreeNode newChild= newChildren[i];
+            ModelTreeNode oldChild= byASTNode.get(newChild.getASTNode());
+
+            if (oldChild == null || !unmatched.containsKey(oldChild) || oldChild.getCategory() != newChild.getCategory()) {
+                if (byLabel == null) {
+                    byLabel= new HashMap<String, LinkedList<ModelTreeNode>>(oldChildren.length);
+                    for(ModelTreeNode child: oldChildren) {
+                        String key= getLabelKey(child);
+                        LinkedList<ModelTreeNode> sameKey= byLabel.get(key);
+
+                        if (sameKey == null) {
+                            byLabel.put(key, sameKey= new LinkedList<ModelTreeNode>());
+                        }
+                        sameKey.add(child);
+                    }
+                }
+                LinkedList<ModelTreeNode> sameKey= byLabel.get(getLabelKey(newChild));
+
+                oldChild= null;
+                while (sameKey != null && !sameKey.isEmpty() && oldChild == null) {
+                    oldChild= sameKey.removeFirst();
+                    if (!unmatched.containsKey(oldChild)) {
+                        oldChild= null;
+                    }
+                }
+            }
+            if (oldChild != null) {
+                unmatched.remove(oldChild);
+                if (oldChild.getASTNode() != newChild.getASTNode()) {
+                    // Matched by label, so the text is the same; only the image may differ
+                    Object oldImageKey= getImageKey(oldChild, delta);
+
+                    oldChild.setASTNode(newChild.getASTNode());
+                    if (!oldImageKey.equals(getImageKey(oldChild, delta))) {
+                        delta.changed.add(oldChild);
+                    }
+                }
+                if (!oldChild.hasComputedChildren()) {
+                    // Nothing of the old child's subtree was ever shown, so no need to compute or diff it
+                    adoptChildren(oldChild, newChild);
+                } else if (getTreeViewer().getExpandedState(oldChild)) {
+                    diffChildren(oldChild, newChild, delta);
+                } else {
+                    // Its subtree isn't visible, so isn't worth diffing
+                    adoptChildren(oldChild, newChild);
+                    delta.adopted.add(oldChild);
+                }
+                children[i]= oldChild;
+            } else {
+                children[i]= newChild;
+                inserted.add(new Insertion(oldParent, newChild, i));
+            }
+        }
+        delta.removed.addAll(unmatched.keySet());
+        oldParent.setChildren(children);
+        delta.inserted.addAll(inserted);
+    }
+
+    private void adoptChildren(ModelTreeNode oldNode, ModelTreeNode newNode) {
+        ModelTreeNode.IChildrenComputer computer= newNode.getChildrenComputer();
+
+        if (computer != null) {
+            oldNode.setChildrenComputer(computer);
+        } else {
+            oldNode.setChildren(newNode.getChildren());
+        }
+    }
+
+    /**
+     * @return the key by which the given node is matched with nodes of the next tree: its
+     * category and text, as computed on the background thread if possible
+     */
+    private String getLabelKey(ModelTreeNode node) {
+        String key= fLabelKeys.get(node);
+
+        if (key == null) {
+            // E.g. a lazily computed sub-item
+            fLabelKeys.put(node, key= getKey(node));
+        }
+        return key;
+    }
+
+    private String getKey(ModelTreeNode node) {
+        return node.getCategory() + ":" + getText(node);
+    }
+
+    /**
+     * @return a key that is equal for equal images, even if the label provider creates a
+     * new image on every call; the keys of shared images are only computed once per update
+     */
+    private Object getImageKey(ModelTreeNode node, TreeDelta delta) {
+        Image image= (fLabelProvider != null) ? fLabelProvider.getImage(node) : null;
+
+        if (image == null || image.isDisposed()) {
+            return "";
+        }
+        Object key= delta.imageKeys.get(image);
+
+        if (key == null) {
+            ImageData data= image.getImageData();
+
+            key= data.width + "x" + data.height + ":" + Arrays.hashCode(data.data) + ":" + Arrays.hashCode(data.alphaData);
+            delta.imageKeys.put(image, key);
+        }
+        return key;
+    }
+
+    private String getText(ModelTreeNode node) {
+        String text= (fLabelProvider != null) ? fLabelProvider.getText(node) : String.valueOf(node.getASTNode());
+
+        return (text != null) ? text : "";
+    }
+
     @Override
     public void selectionChanged(SelectionChangedEvent event) {
         super.selectionChanged(event);
@@ -140,7 +409,7 @@ public class IMPOutlinePage extends ContentOutlinePage implements IModelListener
             viewer.setLabelProvider(fLabelProvider);
         }
         viewer.addSelectionChangedListener(this);
-        ModelTreeNode rootNode= fModelBuilder.buildTree(fParseController.getCurrentAst());
+        ModelTreeNode rootNode= buildTree();
         viewer.setInput(rootNode);
         viewer.setAutoExpandLevel(2);
 
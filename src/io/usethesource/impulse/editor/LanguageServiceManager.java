@@ -103,6 +103,12 @@ public class LanguageServiceManager {
 
     private IQuickFixAssistant fQuickFixAssistant;
 
+    /**
+     * True between initialize() and dispose(), during which this manager keeps the
+     * language's shared services alive
+     */
+    private boolean fRetainsSharedServices;
+
     public LanguageServiceManager(Language lang) {
         fLanguage= lang;
     }
@@ -112,6 +118,10 @@ public class LanguageServiceManager {
         if (PreferenceCache.emitMessages)
             RuntimePlugin.getInstance().writeInfoMsg("Instantiating language service extensions for " + fLanguage.getName());
 
+        if (!fRetainsSharedServices) {
+            fServiceFactory.retainSharedServices(fLanguage);
+            fRetainsSharedServices= true;
+        }
         fActionContributors= fServiceFactory.getLanguageActionsContributors(fLanguage);
         fAnnotationHover= fServiceFactory.getAnnotationHover(fLanguage);
         fAutoEditStrategies= fServiceFactory.getAutoEditStrategies(fLanguage);
@@ -145,6 +155,10 @@ public class LanguageServiceManager {
     }
 
     public void dispose() {
+        if (fRetainsSharedServices) {
+            fServiceFactory.releaseSharedServices(fLanguage);
+            fRetainsSharedServices= false;
+        }
         fActionContributors= null;
         fAnnotationHover= null;
         fAutoEditStrategies= null;
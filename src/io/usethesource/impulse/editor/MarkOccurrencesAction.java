@@ -15,9 +15,11 @@ package io.usethesource.impulse.editor;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.eclipse.jface.action.IAction;
 import org.eclipse.jface.text.BadLocationException;
@@ -47,7 +49,9 @@ import io.usethesource.impulse.core.ErrorHandler;
 import io.usethesource.impulse.parser.IParseController;
 import io.usethesource.impulse.parser.ISourcePositionLocator;
 import io.usethesource.impulse.runtime.RuntimePlugin;
+import io.usethesource.impulse.services.IOccurrenceIndexer;
 import io.usethesource.impulse.services.IOccurrenceMarker;
+import io.usethesource.impulse.services.OccurrenceIndex;
 
 /**
  * Action class that implements the "Mark Occurrences" mode. This action contains a number of
@@ -96,6 +100,14 @@ public class MarkOccurrencesAction implements IWorkbenchWindowActionDelegate {
      */
     private IOccurrenceMarker fOccurrenceMarker;
 
+    /**
+     * If the occurrence marker is an IOccurrenceIndexer, the index of all occurrences in
+     * fIndexedAST, which is built on demand, once per AST.
+     */
+    private OccurrenceIndex fOccurrenceIndex;
+
+    private Object fIndexedAST;
+
     private Annotation[] fOccurrenceAnnotations;
 
     private ISelectionChangedListener fSelectionListener;
@@ -147,6 +159,8 @@ public class MarkOccurrencesAction implements IWorkbenchWindowActionDelegate {
                 fDocument= null;
                 fParseController= null;
                 fOccurrenceMarker= null;
+                fOccurrenceIndex= null;
+                fIndexedAST= null;
                 fOccurrenceAnnotations= null;
             }
         }
@@ -293,13 +307,23 @@ public class MarkOccurrencesAction implements IWorkbenchWindowActionDelegate {
 //          System.err.println("MarkOccurrencesAction.recomputeAnnotationsForSelection(..):  root of current AST is null; returning");
             return;
         }
-        Object selectedNode= fParseController.getSourcePositionLocator().findNode(root, offset, offset+length-1);
         if (fOccurrenceMarker == null) {
             // It might be possible to set the active editor at this point under
             // some circumstances, but attempting to do so under other circumstances
             // can lead to stack overflow, so just return.
             return;
         }
+        if (fOccurrenceMarker instanceof IOccurrenceIndexer) {
+            try {
+                Position[] positions= getOccurrenceIndex(root).getOccurrencesAt(offset, length);
+
+                placeAnnotations(convertPositionsToAnnotationMap(positions != null ? positions : new Position[0], document), annotationModel);
+            } catch (Exception e) {
+                ErrorHandler.reportError("Error obtaining occurrences of selected node", e);
+            }
+            return;
+        }
+        Object selectedNode= fParseController.getSourcePositionLocator().findNode(root, offset, offset+length-1);
         try {
             List<Object> occurrences= fOccurrenceMarker.getOccurrencesOf(fParseController, selectedNode);
             if (occurrences != null) {
@@ -314,6 +338,21 @@ public class MarkOccurrencesAction implements IWorkbenchWindowActionDelegate {
         }
     }
 
+    /**
+     * @return the index of all occurrences in the given AST, which is only built if the
+     * AST differs from the one that was indexed last
+     */
+    private OccurrenceIndex getOccurrenceIndex(Object root) {
+        if (fOccurrenceIndex == null || fIndexedAST != root) {
+            OccurrenceIndex index= new OccurrenceIndex();
+
+            ((IOccurrenceIndexer) fOccurrenceMarker).indexOccurrences(fParseController, root, index);
+            fOccurrenceIndex= index;
+            fIndexedAST= root;
+        }
+        return fOccurrenceIndex;
+    }
+
     private Map<Annotation, Position> convertPositionsToAnnotationMap(Position[] positions, IDocument document) {
         Map<Annotation, Position> annotationMap= new HashMap<Annotation, Position>(positions.length);
 
@@ -330,12 +369,61 @@ public class MarkOccurrencesAction implements IWorkbenchWindowActionDelegate {
         return annotationMap;
     }
 
+    /**
+     * Replaces the current occurrence annotations by the given ones. Current annotations
+     * that have the same position and text as a new one are kept, so that only the
+     * differences are removed from and added to the annotation model.
+     */
     private void placeAnnotations(Map<Annotation,Position> annotationMap, IAnnotationModel annotationModel) {
         Object lockObject= getLockObject(annotationModel);
 
         synchronized (lockObject) {
             if (annotationModel instanceof IAnnotationModelExtension) {
-                ((IAnnotationModelExtension) annotationModel).replaceAnnotations(fOccurrenceAnnotations, annotationMap);
+                Map<Position, Annotation> existing= new HashMap<Position, Annotation>();
+                List<Annotation> removals= new ArrayList<Annotation>();
+
+                if (fOccurrenceAnnotations != null) {
+                    for(Annotation annotation: fOccurrenceAnnotations) {
+                        Position pos= annotationModel.getPosition(annotation);
+
+                        if (pos == null) {
+                            continue; // no longer in the model
+                        }
+                        if (pos.isDeleted()) {
+                            removals.add(annotation);
+                            continue;
+                        }
+                        // Copy the position, since the model keeps updating its own
+                        Annotation duplicate= existing.put(new Position(pos.offset, pos.length), annotation);
+
+                        if (duplicate != null) {
+                            removals.add(duplicate);
+                        }
+                    }
+                }
+
+                Map<Annotation, Position> additions= new HashMap<Annotation, Position>();
+                Set<Annotation> current= new HashSet<Annotation>();
+
+                for(Map.Entry<Annotation, Position> entry: annotationMap.entrySet()) {
+                    Position pos= entry.getValue();
+                    Annotation old= existing.remove(new Position(pos.offset, pos.length));
+
+                    if (old != null && entry.getKey().getText().equals(old.getText())) {
+                        current.add(old);
+                    } else {
+                        if (old != null) {
+                            removals.add(old);
+                        }
+                        additions.put(entry.getKey(), pos);
+                        current.add(entry.getKey());
+                    }
+                }
+                removals.addAll(existing.values());
+                if (!removals.isEmpty() || !additions.isEmpty()) {
+                    ((IAnnotationModelExtension) annotationModel).replaceAnnotations(removals.toArray(new Annotation[removals.size()]), additions);
+                }
+                fOccurrenceAnnotations= current.toArray(new Annotation[current.size()]);
             } else {
                 removeExistingOccurrenceAnnotations();
                 Iterator<Map.Entry<Annotation,Position>> iter= annotationMap.entrySet().iterator();
@@ -343,8 +431,8 @@ public class MarkOccurrencesAction implements IWorkbenchWindowActionDelegate {
                     Map.Entry<Annotation,Position> mapEntry= iter.next();
                     annotationModel.addAnnotation((Annotation) mapEntry.getKey(), (Position) mapEntry.getValue());
                 }
+                fOccurrenceAnnotations= (Annotation[]) annotationMap.keySet().toArray(new Annotation[annotationMap.keySet().size()]);
             }
-            fOccurrenceAnnotations= (Annotation[]) annotationMap.keySet().toArray(new Annotation[annotationMap.keySet().size()]);
         }
     }
 
@@ -428,6 +516,8 @@ public class MarkOccurrencesAction implements IWorkbenchWindowActionDelegate {
         }
 
         fOccurrenceMarker = fLanguageServiceManager.getOccurrenceMarker();
+        fOccurrenceIndex= null;
+        fIndexedAST= null;
         registerListeners();
 
         ISelection selection = fActiveEditor.getSelectionProvider().getSelection();
@@ -15,16 +15,43 @@
  */
 package io.usethesource.impulse.editor;
 
+import java.util.Arrays;
+
+/**
+ * A node in the tree model of a source file, as shown by the outline. The children of a
+ * node can be computed up front, or on demand by an {@link IChildrenComputer}, so that
+ * huge models only get built as far as they are looked at.
+ */
 public class ModelTreeNode {
     public static final int DEFAULT_CATEGORY= 0;
 
+    /**
+     * Computes the children of nodes whose children are created lazily.
+     */
+    public interface IChildrenComputer {
+        /**
+         * Adds the children of the given node, using {@link ModelTreeNode#addChild(ModelTreeNode)}.
+         */
+        void computeChildren(ModelTreeNode node);
+    }
+
     private static final ModelTreeNode[] NO_CHILDREN= new ModelTreeNode[0];
 
+    /**
+     * Only the first fNumChildren elements are in use; the array grows by doubling
+     */
     private ModelTreeNode[] fChildren= NO_CHILDREN;
 
+    private int fNumChildren;
+
+    /**
+     * If non-null, computes the children the first time they are asked for
+     */
+    private IChildrenComputer fChildrenComputer;
+
     private ModelTreeNode fParent;
 
-    private final Object fASTNode;
+    private Object fASTNode;
 
     private final int fCategory;
 
@@ -47,22 +74,71 @@ public class ModelTreeNode {
         fCategory= category;
     }
 
-    public void setChildren(ModelTreeNode[] children) {
+    public synchronized void setChildren(ModelTreeNode[] children) {
         fChildren= children;
+        fNumChildren= children.length;
+        fChildrenComputer= null;
         for(int i= 0; i < children.length; i++) {
             children[i].fParent= this;
         }
     }
 
-    public void addChild(ModelTreeNode child) {
-        ModelTreeNode[] newChildren= new ModelTreeNode[fChildren.length + 1];
-        System.arraycopy(fChildren, 0, newChildren, 0, fChildren.length);
-        newChildren[fChildren.length]= child;
-        fChildren= newChildren;
+    public synchronized void addChild(ModelTreeNode child) {
+        if (fNumChildren == fChildren.length) {
+            fChildren= Arrays.copyOf(fChildren, Math.max(4, 2 * fNumChildren));
+        }
+        fChildren[fNumChildren++]= child;
+    }
+
+    /**
+     * Makes the children of this node be computed by the given computer, when they are
+     * first asked for.
+     */
+    public synchronized void setChildrenComputer(IChildrenComputer computer) {
+        fChildren= NO_CHILDREN;
+        fNumChildren= 0;
+        fChildrenComputer= computer;
     }
 
     public ModelTreeNode[] getChildren() {
-        return fChildren;
+        IChildrenComputer computer;
+
+        synchronized (this) {
+            computer= fChildrenComputer;
+            fChildrenComputer= null;
+        }
+        if (computer != null) {
+            computer.computeChildren(this);
+        }
+        synchronized (this) {
+            if (fChildren.length != fNumChildren) {
+                fChildren= Arrays.copyOf(fChildren, fNumChildren);
+            }
+            return fChildren;
+        }
+    }
+
+    /**
+     * @return true if this node has children, or if they haven't been computed yet
+     */
+    public synchronized boolean hasChildren() {
+        return fChildrenComputer != null || fNumChildren > 0;
+    }
+
+    /**
+     * @return true if the children of this node were computed (possibly up front), and
+     * false if they will only be computed when they are first asked for
+     */
+    public synchronized boolean hasComputedChildren() {
+        return fChildrenComputer == null;
+    }
+
+    /**
+     * @return the computer that will compute this node's children, if they haven't been
+     * computed yet
+     */
+    synchronized IChildrenComputer getChildrenComputer() {
+        return fChildrenComputer;
     }
 
     public ModelTreeNode getParent() {
@@ -73,17 +149,25 @@ public class ModelTreeNode {
         return fASTNode;
     }
 
+    /**
+     * Lets a node that is shown in a viewer stand for the corresponding node of a newer
+     * tree; used by the outline to refresh its tree in place.
+     */
+    void setASTNode(Object astNode) {
+        fASTNode= astNode;
+    }
+
     public int getCategory() {
         return fCategory;
     }
 
-    public String toString() {
+    public synchronized String toString() {
         StringBuilder sb= new StringBuilder();
 
         sb.append(fASTNode.toString());
-        if (fChildren.length > 0) {
+        if (fNumChildren > 0) {
             sb.append(" [");
-            for(int i= 0; i < fChildren.length; i++) {
+            for(int i= 0; i < fNumChildren; i++) {
                 sb.append(fChildren[i].toString());
             }
             sb.append(" ]");
@@ -13,6 +13,11 @@ package io.usethesource.impulse.editor;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
@@ -20,7 +25,9 @@ import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.text.DocumentEvent;
 import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
 import org.eclipse.ui.IEditorInput;
 import org.eclipse.ui.IEditorPart;
 import org.eclipse.ui.texteditor.IDocumentProvider;
@@ -29,10 +36,13 @@ import io.usethesource.impulse.core.ErrorHandler;
 import io.usethesource.impulse.language.Language;
 import io.usethesource.impulse.language.LanguageRegistry;
 import io.usethesource.impulse.model.ISourceProject;
+import io.usethesource.impulse.parser.IIncrementalParseController;
+import io.usethesource.impulse.parser.IIndependentModelListener;
 import io.usethesource.impulse.parser.IMessageHandler;
 import io.usethesource.impulse.parser.IModelListener;
 import io.usethesource.impulse.parser.IParseController;
 import io.usethesource.impulse.preferences.PreferenceCache;
+import io.usethesource.impulse.runtime.MetricsRegistry;
 import io.usethesource.impulse.runtime.RuntimePlugin;
 
 /**
@@ -51,6 +61,42 @@ public class ParserScheduler extends Job {
 
     private final List<IModelListener> fAstListeners= new ArrayList<IModelListener>();
 
+    /**
+     * Runs the updates of {@link IIndependentModelListener}s, shared by all editors so that
+     * the number of threads stays bounded regardless of the number of open editors.
+     */
+    private static final ExecutorService sListenerExecutor= Executors.newFixedThreadPool(
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread= new Thread(r, "Impulse model listener update");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * The document edits applied since the most recent successful parse. Only recorded
+     * when the parse controller is an {@link IIncrementalParseController}.
+     */
+    private final List<DocumentEvent> fPendingEdits= new ArrayList<DocumentEvent>();
+
+    /**
+     * True until a parse of the complete document has run to completion, and again after
+     * any full parse got cancelled, since the pending edits are then no longer relative
+     * to the current AST.
+     */
+    private volatile boolean fFullParseNeeded= true;
+
+    /**
+     * Upper bound on the delay computed by {@link #scheduleReparse(long)}, in milliseconds.
+     */
+    private static final long MAX_REPARSE_DELAY= 1000;
+
+    /**
+     * Moving average of the duration of recent completed parses, in milliseconds.
+     */
+    private volatile long fAverageParseTime= 0;
+
     public ParserScheduler(IParseController parseController, IEditorPart editorPart,
             IDocumentProvider docProvider, IMessageHandler msgHandler) {
     	super(LanguageRegistry.findLanguage(EditorInputUtils.getPath(editorPart.getEditorInput()), null).getName() + " ParserScheduler for " + editorPart.getEditorInput().getName());
@@ -68,12 +114,16 @@ public class ParserScheduler extends Job {
         }
 
         IEditorInput editorInput= fEditorPart.getEditorInput();
+        IDocument document= null;
+        long generation= IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
         try {
-            IDocument document= fDocumentProvider.getDocument(editorInput);
+            document= fDocumentProvider.getDocument(editorInput);
 
             if (document == null)
                 return Status.OK_STATUS;
 
+            generation= getGeneration(document);
+
             if (PreferenceCache.emitMessages) {
                 RuntimePlugin.getInstance().writeInfoMsg("Parsing language " + fParseController.getLanguage().getName() + " for input " + editorInput.getName());
             }
@@ -81,12 +131,18 @@ public class ParserScheduler extends Job {
             // If we're editing a workspace resource, check to make sure that it still exists
             if (sourceStillExists()) {
                 fMsgHandler.clearMessages();
+                long start= System.nanoTime();
                 // Don't bother to retrieve the AST; we don't need it; just make sure the document gets parsed.
-                fParseController.parse(document, monitor);
+                parse(document, generation, monitor);
+
+                if (!monitor.isCanceled()) {
+                    recordParseTime((System.nanoTime() - start) / 1000000);
+                    RuntimePlugin.getMetricsRegistry().recordTime(MetricsRegistry.PARSE_TIME, getLanguageName(), fParseController.getPath(), start);
+                }
                 fMsgHandler.endMessages();
             }
 
-            if (!monitor.isCanceled() && sourceStillExists()) {
+            if (!monitor.isCanceled() && !isStale(document, generation) && sourceStillExists()) {
                 notifyModelListeners(monitor);
             }
         } 
@@ -95,9 +151,13 @@ public class ParserScheduler extends Job {
         	String input = editorInput != null ? editorInput.getName() : "<unknown editor input";
         	String name = lang != null ? lang.getName() : "<unknown language>";
             ErrorHandler.reportError("Error running parser for language " + name + " and input " + input + ":", e);
+            // Whatever edits were handed to the parser are lost, so start over with the complete document
+            fFullParseNeeded= true;
             // RMF 8/2/2006 - Notify the AST listeners even on an exception - the compiler front end
             // may have failed at some phase, but there may be enough info to drive IDE services.
-            notifyModelListeners(monitor);
+            if (!isStale(document, generation)) {
+                notifyModelListeners(monitor);
+            }
         } 
         catch (LinkageError e) {
             // Catch things like NoClassDefFoundError that might result from, e.g., errors in plugin metadata, classpath, etc.
@@ -106,6 +166,102 @@ public class ParserScheduler extends Job {
         return Status.OK_STATUS;
     }
 
+    /**
+     * Cancels any pending or running parse and schedules a new one. The delay adapts to
+     * the duration of recent parses, so that slow parsers are not restarted on every
+     * keystroke while the user is still typing.
+     * @param minimumDelay the delay to use for parsers that are fast, in milliseconds
+     */
+    public void scheduleReparse(long minimumDelay) {
+        cancel();
+        schedule(getReparseDelay(minimumDelay));
+    }
+
+    private long getReparseDelay(long minimumDelay) {
+        return Math.max(minimumDelay, Math.min(MAX_REPARSE_DELAY, fAverageParseTime));
+    }
+
+    private void recordParseTime(long millis) {
+        long average= fAverageParseTime;
+        fAverageParseTime= (average == 0) ? millis : (3 * average + millis) / 4;
+    }
+
+    /**
+     * @return the modification stamp of the given document, which changes on every edit
+     */
+    private long getGeneration(IDocument document) {
+        if (document instanceof IDocumentExtension4) {
+            return ((IDocumentExtension4) document).getModificationStamp();
+        }
+        return IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+    }
+
+    /**
+     * @return true if the given document was modified after the parse of the given
+     * generation started, meaning that the resulting AST is already out of date and a
+     * new parse has been (or will be) scheduled
+     */
+    private boolean isStale(IDocument document, long generation) {
+        if (document == null || generation == IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP) {
+            return false;
+        }
+        boolean stale= getGeneration(document) != generation;
+
+        if (stale && PreferenceCache.emitMessages) {
+            RuntimePlugin.getInstance().writeInfoMsg("Document changed during parse; bypassing listener notification.");
+        }
+        return stale;
+    }
+
+    private void parse(IDocument document, long generation, IProgressMonitor monitor) {
+        List<DocumentEvent> edits= takePendingEdits();
+        Object previousAst= fParseController.getCurrentAst();
+
+        if (fParseController instanceof IIncrementalParseController && !fFullParseNeeded && !edits.isEmpty()
+                && document == fParseController.getDocument() && previousAst != null) {
+            ((IIncrementalParseController) fParseController).parse(document, edits, previousAst, monitor);
+
+            if (generation != IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP && getGeneration(document) != generation) {
+                // The parse controller may or may not have seen the edits that arrived in the
+                // meantime, so the pending edits can't be trusted to be relative to its AST
+                fFullParseNeeded= true;
+            } else if (monitor.isCanceled() && fParseController.getCurrentAst() == previousAst) {
+                // The parse controller kept its previous AST, so these edits still need to be applied
+                restorePendingEdits(edits);
+            }
+            return;
+        }
+        fParseController.parse(document, monitor);
+        fFullParseNeeded= monitor.isCanceled();
+    }
+
+    /**
+     * Records an edit to the document, so that an {@link IIncrementalParseController} can
+     * be told about it on the next parse. Must be called for every change to the document,
+     * before the next parse is scheduled.
+     */
+    public void recordEdit(DocumentEvent event) {
+        if (fParseController instanceof IIncrementalParseController) {
+            synchronized (fPendingEdits) {
+                fPendingEdits.add(event);
+            }
+        }
+    }
+
+    private List<DocumentEvent> takePendingEdits() {
+        synchronized (fPendingEdits) {
+            List<DocumentEvent> edits= new ArrayList<DocumentEvent>(fPendingEdits);
+            fPendingEdits.clear();
+            return edits;
+        }
+    }
+
+    private void restorePendingEdits(List<DocumentEvent> edits) {
+        synchronized (fPendingEdits) {
+            fPendingEdits.addAll(0, edits);
+        }
+    }
+
     private boolean sourceStillExists() {
         ISourceProject project= fParseController.getProject();
         if (project == null) {
@@ -135,13 +291,85 @@ public class ParserScheduler extends Job {
             }
             
             if (fParseController.getCurrentAst() != null) {
-            	for (int n=fAstListeners.size() - 1; n >= 0 && !monitor.isCanceled(); n--) {
-            		IModelListener listener= fAstListeners.get(n);
-            		listener.update(fParseController, monitor);
-            	}
+                List<Future<?>> independentUpdates= new ArrayList<Future<?>>();
+
+                try {
+                    for (int n=fAstListeners.size() - 1; n >= 0 && !monitor.isCanceled(); n--) {
+                        IModelListener listener= fAstListeners.get(n);
+
+                        if (listener instanceof IIndependentModelListener) {
+                            independentUpdates.add(sListenerExecutor.submit(new ListenerUpdate(listener, monitor)));
+                        }
+                    }
+                    for (int n=fAstListeners.size() - 1; n >= 0 && !monitor.isCanceled(); n--) {
+                        IModelListener listener= fAstListeners.get(n);
+
+                        if (!(listener instanceof IIndependentModelListener)) {
+                            updateListener(listener, monitor);
+                        }
+                    }
+                } finally {
+                    awaitUpdates(independentUpdates);
+                }
             }
         } else if (PreferenceCache.emitMessages) {
             RuntimePlugin.getInstance().writeInfoMsg("No AST; bypassing listener notification.");
         }
     }
+
+    private void updateListener(IModelListener listener, IProgressMonitor monitor) {
+        long start= System.nanoTime();
+
+        listener.update(fParseController, monitor);
+        RuntimePlugin.getMetricsRegistry().recordTime(MetricsRegistry.LISTENER_UPDATE_TIME + listener.getClass().getName(),
+                getLanguageName(), fParseController.getPath(), start);
+    }
+
+    private String getLanguageName() {
+        Language lang= fParseController.getLanguage();
+
+        return (lang != null) ? lang.getName() : null;
+    }
+
+    /**
+     * Waits for all given listener updates to finish, even if the parse was cancelled in
+     * the meantime, so that no update overlaps with the next parse.
+     */
+    private void awaitUpdates(List<Future<?>> updates) {
+        boolean interrupted= false;
+
+        for (Future<?> update : updates) {
+            while (true) {
+                try {
+                    update.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted= true;
+                } catch (ExecutionException e) {
+                    ErrorHandler.reportError("Error while updating model listener for " + fParseController.getPath(), e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class ListenerUpdate implements Runnable {
+        private final IModelListener fListener;
+
+        private final IProgressMonitor fMonitor;
+
+        public ListenerUpdate(IModelListener listener, IProgressMonitor monitor) {
+            fListener= listener;
+            fMonitor= monitor;
+        }
+
+        public void run() {
+            if (!fMonitor.isCanceled()) {
+                updateListener(fListener, fMonitor);
+            }
+        }
+    }
 }
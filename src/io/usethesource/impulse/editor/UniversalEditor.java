@@ -747,8 +747,8 @@ public class UniversalEditor extends TextEditor implements IASTFindReplaceTarget
         doc.addDocumentListener(fDocumentListener= new IDocumentListener() {
             public void documentAboutToBeChanged(DocumentEvent event) {}
             public void documentChanged(DocumentEvent event) {
-                fParserScheduler.cancel();
-                fParserScheduler.schedule(reparse_schedule_delay);
+                fParserScheduler.recordEdit(event);
+                fParserScheduler.scheduleReparse(reparse_schedule_delay);
             }
         });
     }
@@ -1524,7 +1524,7 @@ public class UniversalEditor extends TextEditor implements IASTFindReplaceTarget
         public void setDocument(IDocument document) { }
     }
 
-    private IMessageHandler fAnnotationCreator= new AnnotationCreator(this);
+    private IMessageHandler fAnnotationCreator= new AnnotationCreator(this, true);
 
     private final IRegionSelectionService fRegionSelector= new IRegionSelectionService() {
         public void selectAndReveal(int startOffset, int length) {
@@ -12,6 +12,8 @@
 package io.usethesource.impulse.editor.internal;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -33,7 +35,11 @@ import io.usethesource.impulse.parser.IMessageHandler;
 /**
  * An implementation of the IMessageHandler interface that creates editor annotations
  * directly from messages. Used for live parsing within a source editor (cf. building,
- * which uses the class MarkerCreator to create markers).
+ * which uses the class MarkerCreator to create markers).<br>
+ * In reconciling mode, the annotations of the previous parse stay in place until the
+ * messages of the next parse are complete, and only the differences are then applied to
+ * the annotation model: annotations with the same position, type (i.e. severity), message
+ * and attributes as a new message are kept as they are.
  * @author rmfuhrer
  */
 public class AnnotationCreator implements IMessageHandler {
@@ -59,15 +65,70 @@ public class AnnotationCreator implements IMessageHandler {
         }
     }
 
+    /**
+     * Identifies an annotation for the purpose of reconciling
+     */
+    private static class AnnotationKey {
+        private final int offset;
+        private final int length;
+        private final String type;
+        private final String message;
+        private final Map<String, Object> attributes;
+
+        public AnnotationKey(int offset, int length, String type, String message, Map<String, Object> attributes) {
+            this.offset= offset;
+            this.length= length;
+            this.type= type;
+            this.message= message;
+            this.attributes= attributes;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof AnnotationKey)) {
+                return false;
+            }
+            AnnotationKey other= (AnnotationKey) obj;
+
+            return offset == other.offset && length == other.length && type.equals(other.type)
+                    && (message == null ? other.message == null : message.equals(other.message))
+                    && (attributes == null ? other.attributes == null : attributes.equals(other.attributes));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * offset + length) + type.hashCode()) + (message != null ? message.hashCode() : 0);
+        }
+    }
+
     private final ITextEditor fEditor;
     private final List<PositionedMessage> fMessages= new LinkedList<PositionedMessage>();
+    private final boolean fReconcile;
+
+    /**
+     * In reconciling mode, the annotations that were in the model after the previous call
+     * to endMessages(), and the model they were put in
+     */
+    private List<Annotation> fAnnotations= Collections.emptyList();
+    private IAnnotationModel fAnnotationModel;
 
     public AnnotationCreator(ITextEditor textEditor) {
+        this(textEditor, false);
+    }
+
+    /**
+     * @param reconcile if true, existing annotations are updated with the differences
+     * only, instead of being removed at the start of each parse and re-created at the end
+     */
+    public AnnotationCreator(ITextEditor textEditor, boolean reconcile) {
         fEditor= textEditor;
+        fReconcile= reconcile;
     }
 
     public void clearMessages() {
-        removeAnnotations();
+        if (!fReconcile) {
+            removeAnnotations();
+        }
         fMessages.clear();
     }
 
@@ -95,6 +156,13 @@ public class AnnotationCreator implements IMessageHandler {
 
         if (docProvider != null) {
             IAnnotationModel model= docProvider.getAnnotationModel(fEditor.getEditorInput());
+            if (fReconcile) {
+                if (model != null) {
+                    reconcileAnnotations(model);
+                }
+                fMessages.clear();
+                return;
+            }
             Annotation[] oldAnnotations = calculateOldAnnotations(model);
             if (model instanceof IAnnotationModelExtension) {
                 IAnnotationModelExtension modelExt= (IAnnotationModelExtension) model;
@@ -116,6 +184,66 @@ public class AnnotationCreator implements IMessageHandler {
         fMessages.clear();
     }
 
+    /**
+     * Brings the parse annotations in the given model in line with the collected messages,
+     * keeping the annotations that are still valid.
+     */
+    private void reconcileAnnotations(IAnnotationModel model) {
+        // Only scan the whole model if we haven't been tracking its parse annotations
+        Collection<Annotation> current= (model == fAnnotationModel) ? fAnnotations : Arrays.asList(calculateOldAnnotations(model));
+        Map<AnnotationKey, Annotation> existing= new HashMap<AnnotationKey, Annotation>(current.size());
+        List<Annotation> toRemove= new ArrayList<Annotation>();
+
+        for(Annotation a: current) {
+            Position pos= model.getPosition(a);
+
+            if (pos == null) {
+                continue; // removed by someone else
+            }
+            if (pos.isDeleted()) {
+                toRemove.add(a);
+                continue;
+            }
+            Annotation duplicate= existing.put(new AnnotationKey(pos.getOffset(), pos.getLength(), a.getType(), a.getText(),
+                    (a instanceof DefaultAnnotation) ? ((DefaultAnnotation) a).getAttributes() : null), a);
+
+            if (duplicate != null) {
+                toRemove.add(duplicate);
+            }
+        }
+
+        Map<Annotation, Position> toAdd= new HashMap<Annotation, Position>();
+        List<Annotation> annotations= new ArrayList<Annotation>(fMessages.size());
+
+        for(PositionedMessage pm: fMessages) {
+            boolean isDefault= pm.attributes != null && fEditor instanceof UniversalEditor;
+            Annotation a= existing.remove(new AnnotationKey(pm.pos.getOffset(), pm.pos.getLength(),
+                    isDefault ? getAnnotationType(pm) : UniversalEditor.PARSE_ANNOTATION_TYPE, pm.message, isDefault ? pm.attributes : null));
+
+            if (a == null) {
+                a= createAnnotation(pm);
+                toAdd.put(a, pm.pos);
+            }
+            annotations.add(a);
+        }
+        toRemove.addAll(existing.values());
+
+        if (!toRemove.isEmpty() || !toAdd.isEmpty()) {
+            if (model instanceof IAnnotationModelExtension) {
+                ((IAnnotationModelExtension) model).replaceAnnotations(toRemove.toArray(new Annotation[toRemove.size()]), toAdd);
+            } else {
+                for(Annotation a: toRemove) {
+                    model.removeAnnotation(a);
+                }
+                for(Map.Entry<Annotation, Position> entry: toAdd.entrySet()) {
+                    model.addAnnotation(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        fAnnotations= annotations;
+        fAnnotationModel= model;
+    }
+
     private Annotation createAnnotation(PositionedMessage pm) {
         if (pm.attributes == null || !(fEditor instanceof UniversalEditor)) {
             return new Annotation(UniversalEditor.PARSE_ANNOTATION_TYPE, false, pm.message);
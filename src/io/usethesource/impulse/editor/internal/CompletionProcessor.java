@@ -11,9 +11,19 @@
 
 package io.usethesource.impulse.editor.internal;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
 import org.eclipse.jface.text.ITextViewer;
 import org.eclipse.jface.text.contentassist.ICompletionProposal;
+import org.eclipse.jface.text.contentassist.ICompletionProposalExtension2;
 import org.eclipse.jface.text.contentassist.IContentAssistProcessor;
 import org.eclipse.jface.text.contentassist.IContextInformation;
 import org.eclipse.jface.text.contentassist.IContextInformationValidator;
@@ -23,9 +33,16 @@ import io.usethesource.impulse.language.Language;
 import io.usethesource.impulse.language.ServiceFactory;
 import io.usethesource.impulse.parser.IModelListener;
 import io.usethesource.impulse.parser.IParseController;
+import io.usethesource.impulse.services.IAsyncContentProposer;
 import io.usethesource.impulse.services.IContentProposer;
 
 public class CompletionProcessor implements IContentAssistProcessor, IModelListener {
+    /**
+     * How long the UI thread waits for an IAsyncContentProposer, in milliseconds, before
+     * it shows the proposals delivered so far and cancels the computation
+     */
+    private static final long PROPOSAL_TIME_BUDGET= 1000;
+
     private final IContextInformation[] NO_CONTEXTS= new IContextInformation[0];
 
     private ICompletionProposal[] NO_COMPLETIONS= new ICompletionProposal[0];
@@ -36,6 +53,24 @@ public class CompletionProcessor implements IContentAssistProcessor, IModelListe
 
     private IContentProposer fContentProposer;
 
+    /**
+     * The modification stamp of the document as of the last parse that listeners were
+     * notified of
+     */
+    private volatile long fParsedGeneration= IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+
+    /**
+     * The proposals of the last asynchronous computation that completed within the time
+     * budget, and the offset and document modification stamp they were computed for
+     */
+    private ICompletionProposal[] fCachedProposals;
+
+    private int fCachedOffset;
+
+    private long fCachedGeneration;
+
+    private String fErrorMessage;
+
     // private HippieProposalProcessor hippieProcessor= new HippieProposalProcessor();
 
     public CompletionProcessor(Language language) {
@@ -44,7 +79,11 @@ public class CompletionProcessor implements IContentAssistProcessor, IModelListe
     }
 
     public ICompletionProposal[] computeCompletionProposals(ITextViewer viewer, int offset) {
+        fErrorMessage= null;
         try {
+            if (fParseController != null && fContentProposer instanceof IAsyncContentProposer) {
+                return computeProposalsAsync(viewer, offset);
+            }
             if (fParseController != null && fContentProposer != null) {
                 return fContentProposer.getContentProposals(fParseController, offset, viewer);
             }
@@ -56,6 +95,71 @@ public class CompletionProcessor implements IContentAssistProcessor, IModelListe
         return NO_COMPLETIONS;
     }
 
+    /**
+     * Runs the asynchronous content proposer in a background job, and waits for it at most
+     * PROPOSAL_TIME_BUDGET milliseconds.<br>
+     * If the AST is out of date with respect to the document, the proposals of the previous
+     * computation are reused instead, as far as they are still valid at the given offset;
+     * only proposals that implement ICompletionProposalExtension2 can be validated.
+     */
+    private ICompletionProposal[] computeProposalsAsync(ITextViewer viewer, int offset) {
+        IDocument document= viewer.getDocument();
+        long generation= getGeneration(document);
+
+        if (fCachedProposals != null && generation != IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP
+                && fCachedOffset == offset && fCachedGeneration == generation) {
+            return fCachedProposals;
+        }
+        if (fCachedProposals != null && isParseStale(generation)) {
+            ICompletionProposal[] validProposals= getValidCachedProposals(document, offset);
+
+            if (validProposals.length > 0) {
+                return validProposals;
+            }
+        }
+
+        ProposalJob job= new ProposalJob((IAsyncContentProposer) fContentProposer, fParseController, offset, viewer);
+
+        job.schedule();
+
+        boolean completed= job.waitForCompletion(PROPOSAL_TIME_BUDGET);
+        ICompletionProposal[] proposals= job.close();
+
+        if (completed) {
+            fCachedProposals= proposals;
+            fCachedOffset= offset;
+            fCachedGeneration= generation;
+        } else {
+            job.cancel();
+            fErrorMessage= "Computing proposals took too long; showing partial results";
+        }
+        return proposals;
+    }
+
+    private ICompletionProposal[] getValidCachedProposals(IDocument document, int offset) {
+        List<ICompletionProposal> result= new ArrayList<ICompletionProposal>();
+
+        for(ICompletionProposal proposal: fCachedProposals) {
+            if (proposal instanceof ICompletionProposalExtension2 && ((ICompletionProposalExtension2) proposal).validate(document, offset, null)) {
+                result.add(proposal);
+            }
+        }
+        return result.toArray(new ICompletionProposal[result.size()]);
+    }
+
+    private boolean isParseStale(long generation) {
+        long parsedGeneration= fParsedGeneration;
+
+        return parsedGeneration != IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP && parsedGeneration != generation;
+    }
+
+    private static long getGeneration(IDocument document) {
+        if (document instanceof IDocumentExtension4) {
+            return ((IDocumentExtension4) document).getModificationStamp();
+        }
+        return IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+    }
+
     public IContextInformation[] computeContextInformation(ITextViewer viewer, int offset) {
         return NO_CONTEXTS;
     }
@@ -73,11 +177,12 @@ public class CompletionProcessor implements IContentAssistProcessor, IModelListe
     }
 
     public String getErrorMessage() {
-        return null;
+        return fErrorMessage;
     }
 
     public void update(IParseController parseController, IProgressMonitor monitor) {
         fParseController= parseController;
+        fParsedGeneration= getGeneration(parseController.getDocument());
     }
 
     // RMF 7 Jan 2010 - It seems that JFace caches our CompletionProcessor, and doesn't
@@ -86,9 +191,94 @@ public class CompletionProcessor implements IContentAssistProcessor, IModelListe
     public void dispose() {
         fParseController= null;
         fContentProposer= null;
+        fCachedProposals= null;
     }
 
     public String toString() {
         return "Completion processor for " + fLanguage.getName() + " on " + fParseController.getPath().toPortableString();
     }
+
+    /**
+     * Runs an IAsyncContentProposer, collecting the proposals it delivers until it is
+     * closed.
+     */
+    private static class ProposalJob extends Job implements IAsyncContentProposer.IProposalCollector {
+        private final IAsyncContentProposer fProposer;
+
+        private final IParseController fParseController;
+
+        private final int fOffset;
+
+        private final ITextViewer fViewer;
+
+        /**
+         * The proposals delivered so far; also guards fDone and fClosed
+         */
+        private final List<ICompletionProposal> fProposals= new ArrayList<ICompletionProposal>();
+
+        private boolean fDone;
+
+        private boolean fClosed;
+
+        public ProposalJob(IAsyncContentProposer proposer, IParseController parseController, int offset, ITextViewer viewer) {
+            super("Computing " + parseController.getLanguage().getName() + " content proposals");
+            setSystem(true);
+            fProposer= proposer;
+            fParseController= parseController;
+            fOffset= offset;
+            fViewer= viewer;
+        }
+
+        @Override
+        protected IStatus run(IProgressMonitor monitor) {
+            try {
+                fProposer.computeContentProposals(fParseController, fOffset, fViewer, this, monitor);
+            } catch (Throwable e) {
+                ErrorHandler.reportError("Exception caught from language-specific content proposer implementation", e);
+            } finally {
+                synchronized (fProposals) {
+                    fDone= true;
+                    fProposals.notifyAll();
+                }
+            }
+            return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+        }
+
+        public void accept(ICompletionProposal[] proposals) {
+            synchronized (fProposals) {
+                if (!fClosed && proposals != null) {
+                    fProposals.addAll(Arrays.asList(proposals));
+                }
+            }
+        }
+
+        /**
+         * @return true if the proposer finished within the given number of milliseconds
+         */
+        public boolean waitForCompletion(long timeout) {
+            long deadline= System.currentTimeMillis() + timeout;
+
+            synchronized (fProposals) {
+                try {
+                    for(long remaining= timeout; !fDone && remaining > 0; remaining= deadline - System.currentTimeMillis()) {
+                        fProposals.wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return fDone;
+            }
+        }
+
+        /**
+         * Stops collecting proposals.
+         * @return the proposals delivered so far
+         */
+        public ICompletionProposal[] close() {
+            synchronized (fProposals) {
+                fClosed= true;
+                return fProposals.toArray(new ICompletionProposal[fProposals.size()]);
+            }
+        }
+    }
 }
@@ -0,0 +1,66 @@
+package io.usethesource.impulse.editor.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Region;
+
+/**
+ * The parts of a document whose presentation awaits repair, kept as a sorted set of
+ * disjoint intervals. Damage that overlaps or touches queued damage is merged with it,
+ * so that every character is repaired at most once, however many times it was damaged.
+ * All methods are thread-safe.
+ */
+public class DamageQueue {
+    /**
+     * Maps the start offset of each queued interval to its (exclusive) end offset
+     */
+    private final TreeMap<Integer, Integer> fIntervals= new TreeMap<Integer, Integer>();
+
+    public synchronized void add(IRegion region) {
+        int start= region.getOffset();
+        int end= start + region.getLength();
+
+        if (end <= start) {
+            return;
+        }
+        Map.Entry<Integer, Integer> before= fIntervals.floorEntry(start);
+
+        if (before != null && before.getValue() >= start) {
+            start= before.getKey();
+            end= Math.max(end, before.getValue());
+        }
+        for(Map.Entry<Integer, Integer> next= fIntervals.ceilingEntry(start); next != null && next.getKey() <= end; next= fIntervals.ceilingEntry(start)) {
+            end= Math.max(end, next.getValue());
+            fIntervals.remove(next.getKey());
+        }
+        fIntervals.put(start, end);
+    }
+
+    public synchronized void addAll(List<IRegion> regions) {
+        for(IRegion region: regions) {
+            add(region);
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return fIntervals.isEmpty();
+    }
+
+    /**
+     * Removes all queued damage.
+     * @return the removed damage, in document order
+     */
+    public synchronized List<IRegion> drain() {
+        List<IRegion> result= new ArrayList<IRegion>(fIntervals.size());
+
+        for(Map.Entry<Integer, Integer> interval: fIntervals.entrySet()) {
+            result.add(new Region(interval.getKey(), interval.getValue() - interval.getKey()));
+        }
+        fIntervals.clear();
+        return result;
+    }
+}
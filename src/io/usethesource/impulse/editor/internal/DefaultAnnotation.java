@@ -45,6 +45,10 @@ public class DefaultAnnotation extends Annotation implements IAnnotation {
 		return attributes.get(key);
 	}
 
+	public Map<String, Object> getAttributes() {
+		return attributes;
+	}
+
 	public int getSeverity() {
 		if (attributes.containsKey(IMessageHandler.SEVERITY_KEY)) {
 			return (Integer) attributes.get(IMessageHandler.SEVERITY_KEY);
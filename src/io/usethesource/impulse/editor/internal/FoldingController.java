@@ -14,12 +14,12 @@ package io.usethesource.impulse.editor.internal;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.jface.text.source.projection.ProjectionAnnotationModel;
 
-import io.usethesource.impulse.parser.IModelListener;
+import io.usethesource.impulse.parser.IIndependentModelListener;
 import io.usethesource.impulse.parser.IParseController;
 import io.usethesource.impulse.runtime.RuntimePlugin;
 import io.usethesource.impulse.services.IFoldingUpdater;
 
-public class FoldingController implements IModelListener {
+public class FoldingController implements IIndependentModelListener {
     private final ProjectionAnnotationModel fAnnotationModel;
     private final IFoldingUpdater fFoldingUpdater;
 
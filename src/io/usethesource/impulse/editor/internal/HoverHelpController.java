@@ -11,7 +11,17 @@
 
 package io.usethesource.impulse.editor.internal;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
 import org.eclipse.jface.text.IInformationControlCreator;
 import org.eclipse.jface.text.IRegion;
 import org.eclipse.jface.text.ITextHover;
@@ -29,17 +39,53 @@ import io.usethesource.impulse.language.Language;
 import io.usethesource.impulse.language.ServiceFactory;
 import io.usethesource.impulse.parser.IModelListener;
 import io.usethesource.impulse.parser.IParseController;
+import io.usethesource.impulse.parser.ISourcePositionLocator;
+import io.usethesource.impulse.services.IAsyncHoverHelper;
 import io.usethesource.impulse.services.IHoverHelper;
 import io.usethesource.impulse.services.base.HoverHelperBase;
 import io.usethesource.impulse.utils.AnnotationUtils;
 
 public class HoverHelpController implements ITextHover, ITextHoverExtension, ITextHoverExtension2, IModelListener {
+    /**
+     * The number of hover results that are kept, most recently used first
+     */
+    private static final int MAX_CACHED_HOVERS= 64;
+
+    /**
+     * How long to wait for an IAsyncHoverHelper, in milliseconds, before showing the
+     * annotations at the hovered offset instead
+     */
+    private static final long HOVER_TIME_BUDGET= 300;
+
     private IParseController controller;
 
     private IHoverHelper hoverHelper;
     
     BestMatchHover fHover;
 
+    /**
+     * The hover help computed since the last reparse, by token; guards itself,
+     * fPendingHovers and fGeneration
+     */
+    private final Map<HoverKey, String> fHoverCache= new LinkedHashMap<HoverKey, String>(16, 0.75f, true) {
+        private static final long serialVersionUID= 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<HoverKey, String> eldest) {
+            return size() > MAX_CACHED_HOVERS;
+        }
+    };
+
+    /**
+     * The background computations of an IAsyncHoverHelper that haven't finished yet
+     */
+    private final Map<HoverKey, HoverJob> fPendingHovers= new HashMap<HoverKey, HoverJob>();
+
+    /**
+     * Incremented on every reparse
+     */
+    private int fGeneration;
+
     public HoverHelpController(Language language) {
         hoverHelper= ServiceFactory.getInstance().getHoverHelper(language);
         if (hoverHelper == null)
@@ -59,13 +105,32 @@ public class HoverHelpController implements ITextHover, ITextHoverExtension, ITe
     public String getHoverInfo(ITextViewer textViewer, IRegion hoverRegion) {
         try {
             final int offset= hoverRegion.getOffset();
+            final HoverKey key= getHoverKey(textViewer.getDocument(), offset);
+
+            synchronized (fHoverCache) {
+                if (fHoverCache.containsKey(key)) {
+                    return fHoverCache.get(key);
+                }
+            }
+
             String help= null;
+            boolean complete= true;
 
-            if (controller != null && hoverHelper != null)
+            if (controller != null && hoverHelper instanceof IAsyncHoverHelper) {
+                HoverJob job= getHoverJob(key, (ISourceViewer) textViewer, offset);
+
+                complete= job.waitForCompletion(HOVER_TIME_BUDGET);
+                help= job.getHelp();
+            } else if (controller != null && hoverHelper != null) {
                 help= hoverHelper.getHoverHelpAt(controller, (ISourceViewer) textViewer, offset);
+            }
             if (help == null)
                 help= AnnotationUtils.formatAnnotationList(AnnotationUtils.getAnnotationsForOffset((ISourceViewer) textViewer, offset));
 
+            if (complete) {
+                // Otherwise, the job caches its result when it's done
+                cacheHover(key, help);
+            }
             return help;
         } catch (Throwable e) {
             ErrorHandler.reportError("Hover help service implementation threw an exception", e);
@@ -92,6 +157,190 @@ public class HoverHelpController implements ITextHover, ITextHoverExtension, ITe
 	
     public void update(IParseController controller, IProgressMonitor monitor) {
         this.controller= controller;
+        synchronized (fHoverCache) {
+            fGeneration++;
+            fHoverCache.clear();
+            for(HoverJob job: fPendingHovers.values()) {
+                job.cancel();
+            }
+            fPendingHovers.clear();
+        }
+    }
+
+    /**
+     * @return the key under which the hover help at the given offset is cached: the
+     * extent of the token at the offset, if any, within the current parse and document
+     * modification stamp
+     */
+    private HoverKey getHoverKey(IDocument document, int offset) {
+        long stamp= (document instanceof IDocumentExtension4) ? ((IDocumentExtension4) document).getModificationStamp() : IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+        int generation;
+
+        synchronized (fHoverCache) {
+            generation= fGeneration;
+        }
+        if (stamp == IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP) {
+            // Edits can't be detected, so nothing can be cached safely
+            return new HoverKey(generation, stamp, -1, -1);
+        }
+
+        IParseController parseController= controller;
+
+        if (parseController != null) {
+            try {
+                Iterator<Object> tokens= parseController.getTokenIterator(new Region(offset, 1));
+                ISourcePositionLocator locator= parseController.getSourcePositionLocator();
+
+                while (tokens != null && locator != null && tokens.hasNext()) {
+                    Object token= tokens.next();
+                    int start= locator.getStartOffset(token);
+                    int end= locator.getEndOffset(token);
+
+                    if (start <= offset && offset <= end) {
+                        return new HoverKey(generation, stamp, start, end);
+                    }
+                }
+            } catch (Exception e) {
+                // Some parse controllers can't produce tokens; just key on the offset
+            }
+        }
+        return new HoverKey(generation, stamp, offset, offset);
+    }
+
+    private void cacheHover(HoverKey key, String help) {
+        synchronized (fHoverCache) {
+            if (key.fStart >= 0 && key.fGeneration == fGeneration) {
+                fHoverCache.put(key, help);
+            }
+        }
+    }
+
+    /**
+     * @return the job computing the hover help for the given key, which is started if it
+     * isn't already running
+     */
+    private HoverJob getHoverJob(HoverKey key, ISourceViewer viewer, int offset) {
+        synchronized (fHoverCache) {
+            HoverJob job= fPendingHovers.get(key);
+
+            if (job == null) {
+                job= new HoverJob(key, (IAsyncHoverHelper) hoverHelper, controller, viewer, offset);
+                if (key.fStart >= 0) {
+                    fPendingHovers.put(key, job);
+                }
+                job.schedule();
+            }
+            return job;
+        }
+    }
+
+    private static final class HoverKey {
+        private final int fGeneration;
+
+        private final long fStamp;
+
+        private final int fStart;
+
+        private final int fEnd;
+
+        public HoverKey(int generation, long stamp, int start, int end) {
+            fGeneration= generation;
+            fStamp= stamp;
+            fStart= start;
+            fEnd= end;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof HoverKey)) {
+                return false;
+            }
+            HoverKey other= (HoverKey) obj;
+
+            return fGeneration == other.fGeneration && fStamp == other.fStamp && fStart == other.fStart && fEnd == other.fEnd;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((fGeneration * 31 + (int) (fStamp ^ (fStamp >>> 32))) * 31 + fStart) * 31 + fEnd;
+        }
+    }
+
+    /**
+     * Runs an IAsyncHoverHelper, and caches its result (or the annotations at the offset,
+     * if it has none) when it's done.
+     */
+    private class HoverJob extends Job {
+        private final HoverKey fKey;
+
+        private final IAsyncHoverHelper fHelper;
+
+        private final IParseController fParseController;
+
+        private final ISourceViewer fViewer;
+
+        private final int fOffset;
+
+        private boolean fDone;
+
+        private String fHelp;
+
+        public HoverJob(HoverKey key, IAsyncHoverHelper helper, IParseController parseController, ISourceViewer viewer, int offset) {
+            super("Computing hover help");
+            setSystem(true);
+            fKey= key;
+            fHelper= helper;
+            fParseController= parseController;
+            fViewer= viewer;
+            fOffset= offset;
+        }
+
+        @Override
+        protected IStatus run(IProgressMonitor monitor) {
+            String help= null;
+
+            try {
+                help= fHelper.getHoverHelpAt(fParseController, fViewer, fOffset, monitor);
+            } catch (Throwable e) {
+                ErrorHandler.reportError("Hover help service implementation threw an exception", e);
+            }
+            synchronized (this) {
+                fHelp= help;
+                fDone= true;
+                notifyAll();
+            }
+            if (monitor.isCanceled()) {
+                return Status.CANCEL_STATUS;
+            }
+            if (help == null) {
+                help= AnnotationUtils.formatAnnotationList(AnnotationUtils.getAnnotationsForOffset(fViewer, fOffset));
+            }
+            synchronized (fHoverCache) {
+                fPendingHovers.remove(fKey);
+                cacheHover(fKey, help);
+            }
+            return Status.OK_STATUS;
+        }
+
+        /**
+         * @return true if the hover help was computed within the given number of milliseconds
+         */
+        public synchronized boolean waitForCompletion(long timeout) {
+            long deadline= System.currentTimeMillis() + timeout;
+
+            try {
+                for(long remaining= timeout; !fDone && remaining > 0; remaining= deadline - System.currentTimeMillis()) {
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return fDone;
+        }
+
+        public synchronized String getHelp() {
+            return fHelp;
+        }
     }
     
     /*
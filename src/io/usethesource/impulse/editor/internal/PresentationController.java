@@ -17,15 +17,24 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Stack;
 
+import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.DocumentEvent;
 import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
+import org.eclipse.jface.text.IDocumentListener;
 import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITextInputListener;
+import org.eclipse.jface.text.ITextListener;
+import org.eclipse.jface.text.ITextViewerExtension5;
+import org.eclipse.jface.text.IViewportListener;
 import org.eclipse.jface.text.Region;
 import org.eclipse.jface.text.TextAttribute;
+import org.eclipse.jface.text.TextEvent;
 import org.eclipse.jface.text.TextPresentation;
+import org.eclipse.jface.text.projection.ProjectionDocumentEvent;
 import org.eclipse.jface.text.source.ISourceViewer;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.StyleRange;
@@ -33,10 +42,11 @@ import org.eclipse.swt.widgets.Display;
 
 import io.usethesource.impulse.core.ErrorHandler;
 import io.usethesource.impulse.editor.LanguageServiceManager;
-import io.usethesource.impulse.parser.IModelListener;
+import io.usethesource.impulse.parser.IIndependentModelListener;
 import io.usethesource.impulse.parser.IParseController;
 import io.usethesource.impulse.parser.ISourcePositionLocator;
 import io.usethesource.impulse.preferences.PreferenceCache;
+import io.usethesource.impulse.runtime.MetricsRegistry;
 import io.usethesource.impulse.runtime.RuntimePlugin;
 import io.usethesource.impulse.services.ITokenColorer;
 import io.usethesource.impulse.utils.ConsoleUtil;
@@ -48,7 +58,7 @@ import io.usethesource.impulse.utils.ConsoleUtil;
  * @author Claffra
  * @author rfuhrer@watson.ibm.com
  */
-public class PresentationController implements IModelListener {
+public class PresentationController implements IIndependentModelListener {
     public static final String CONSOLE_NAME= "Source Tokens";
 
     private final ISourceViewer fSourceViewer;
@@ -57,12 +67,109 @@ public class PresentationController implements IModelListener {
 
     private final IParseController fParseCtlr;
 
-    private final Stack<IRegion> fWorkItems= new Stack<IRegion>();
+    private final DamageQueue fWorkItems= new DamageQueue();
+
+    /**
+     * Damage regions larger than this many characters are repaired in chunks of about
+     * this size, starting with the chunks closest to the visible part of the document.
+     */
+    private static final int CHUNK_SIZE= 32 * 1024;
+
+    /**
+     * The document offsets of the visible part of the source viewer, as of the most recent
+     * viewport change. Tracked on the UI thread, so the parser thread can read them.
+     */
+    private volatile int fViewportStart;
+
+    private volatile int fViewportEnd;
+
+    /**
+     * The style runs currently shown by the source viewer, as far as this controller knows.
+     * Only runs that differ from these are submitted to the viewer.
+     */
+    private final StyleRunCache fStyleRuns= new StyleRunCache();
 
     public PresentationController(ISourceViewer sourceViewer, LanguageServiceManager langServiceMgr) {
         fSourceViewer= sourceViewer;
         this.fParseCtlr= langServiceMgr.getParseController();
         fColorer= langServiceMgr.getTokenColorer();
+        trackViewport();
+        trackStyleChanges();
+    }
+
+    private void trackViewport() {
+        if (fSourceViewer == null) {
+            return;
+        }
+        fSourceViewer.addViewportListener(new IViewportListener() {
+            public void viewportChanged(int verticalOffset) {
+                updateViewport();
+            }
+        });
+        if (Display.getCurrent() != null && fSourceViewer.getTextWidget() != null) {
+            updateViewport();
+        }
+    }
+
+    private void updateViewport() {
+        fViewportStart= fSourceViewer.getTopIndexStartOffset();
+        fViewportEnd= fSourceViewer.getBottomIndexEndOffset();
+    }
+
+    /**
+     * Keeps fStyleRuns in line with the styles of the text widget: runs move along with
+     * document edits, and are forgotten wherever the viewer's presentation is invalidated
+     * or text appears that wasn't visible before (e.g. when a fold is expanded).
+     */
+    private void trackStyleChanges() {
+        if (fSourceViewer == null) {
+            return;
+        }
+        final IDocumentListener documentListener= new IDocumentListener() {
+            public void documentAboutToBeChanged(DocumentEvent event) { }
+            public void documentChanged(DocumentEvent event) {
+                fStyleRuns.documentChanged(event.getOffset(), event.getLength(), (event.getText() != null) ? event.getText().length() : 0);
+            }
+        };
+        if (fSourceViewer.getDocument() != null) {
+            fSourceViewer.getDocument().addDocumentListener(documentListener);
+        }
+        fSourceViewer.addTextInputListener(new ITextInputListener() {
+            public void inputDocumentAboutToBeChanged(IDocument oldInput, IDocument newInput) {
+                if (oldInput != null) {
+                    oldInput.removeDocumentListener(documentListener);
+                }
+            }
+            public void inputDocumentChanged(IDocument oldInput, IDocument newInput) {
+                fStyleRuns.clear();
+                if (newInput != null) {
+                    newInput.addDocumentListener(documentListener);
+                }
+            }
+        });
+        fSourceViewer.addTextListener(new ITextListener() {
+            public void textChanged(TextEvent event) {
+                DocumentEvent docEvent= event.getDocumentEvent();
+
+                if (docEvent instanceof ProjectionDocumentEvent && ((ProjectionDocumentEvent) docEvent).getChangeType() == ProjectionDocumentEvent.PROJECTION_CHANGE) {
+                    ProjectionDocumentEvent projEvent= (ProjectionDocumentEvent) docEvent;
+
+                    fStyleRuns.invalidate(projEvent.getMasterOffset(), projEvent.getMasterOffset() + projEvent.getMasterLength());
+                } else if (docEvent == null) {
+                    // A redraw state change or a presentation invalidation; the offsets are widget offsets
+                    IRegion region= null;
+
+                    if ((event.getLength() > 0 || event.getText() != null) && fSourceViewer instanceof ITextViewerExtension5) {
+                        region= ((ITextViewerExtension5) fSourceViewer).widgetRange2ModelRange(new Region(event.getOffset(), event.getLength()));
+                    }
+                    if (region != null) {
+                        fStyleRuns.invalidate(region.getOffset(), region.getOffset() + region.getLength());
+                    } else {
+                        fStyleRuns.clear();
+                    }
+                }
+            }
+        });
     }
 
     private void dumpToken(Object token, ISourcePositionLocator locator, PrintStream ps) {
@@ -98,7 +205,8 @@ public class PresentationController implements IModelListener {
     }
 
     /**
-     * Push the damaged area onto the work queue for repair when we get scheduled to process the queue.
+     * Add the damaged area to the work queue for repair when we get scheduled to process the queue.
+     * Damage that overlaps or touches damage already in the queue is merged with it.
      * @param region the damaged area
      */
     public void damage(IRegion region) {
@@ -108,25 +216,10 @@ public class PresentationController implements IModelListener {
         IRegion bigRegion= fColorer.calculateDamageExtent(region, fParseCtlr);
 
         if (bigRegion != null) {
-            synchronized (fWorkItems) {
-                boolean redundant= false;
-                for(IRegion dr : fWorkItems) {
-                    if (contains(bigRegion, dr)) {
-                        redundant= true;
-                    }
-                }
-                if (!redundant) {
-//                  System.out.println("damage(): got irredundant damage region: " + bigRegion.getOffset() + ":" + bigRegion.getLength());
-                    fWorkItems.push(bigRegion);
-                }
-            }
+            fWorkItems.add(bigRegion);
         }
     }
 
-    private boolean contains(IRegion r1, IRegion r2) {
-        return r2.getOffset() <= r1.getOffset() && r2.getOffset() + r2.getLength() >= r1.getOffset() + r1.getLength();
-    }
-
     public void update(IParseController controller, IProgressMonitor monitor) {
 //        try {
 //            throw new Exception();
@@ -135,32 +228,109 @@ public class PresentationController implements IModelListener {
 //            e.printStackTrace(System.out);
 //        }
         if (!monitor.isCanceled() && fSourceViewer != null && fSourceViewer.getDocument() != null) {
+            long start= System.nanoTime();
 //          if (fWorkItems.size() == 0) {
 //              ConsoleUtil.findConsoleStream(PresentationController.CONSOLE_NAME).println("PresentationController.update() called, but no damage in the work queue?");
 //          }
-            synchronized (fWorkItems) {
-                if (fWorkItems.size() == 0 && fSourceViewer.getDocument() != null) {
-                    // TODO Shouldn't need to re-color the entire source file here.
-                    // This is intended to handle the case that the parser finishes *after*
-                    // the PresentationRepairer asks for an update().
-                    // We could do a more focused update, if we knew what part of the file had changed.
-//                  System.out.println("PresentationController.update() called, but no work items; reprocessing entire document");
-                    fWorkItems.add(new Region(0, fSourceViewer.getDocument().getLength()));
-                }
-                // TODO Optimization: when there are multiple work items, control redrawing explicitly.
-                // See JavaDoc regarding ITextViewer.changeTextPresentation()'s 2nd argument.
-                // Probably not very common (only refactoring or search/replace?), but perhaps worthwhile.
-                for(int n= fWorkItems.size() - 1; !monitor.isCanceled() && n >= 0; n--) {
-                    Region damage= (Region) fWorkItems.get(n);
-//                  System.out.println(">>> Processing damage region: " + damage.getOffset() + ":" + damage.getLength());
-                    changeTextPresentationForRegion(controller, monitor, damage);
+            List<IRegion> workItems= fWorkItems.drain();
+
+            if (workItems.isEmpty()) {
+                // TODO Shouldn't need to re-color the entire source file here.
+                // This is intended to handle the case that the parser finishes *after*
+                // the PresentationRepairer asks for an update().
+                // We could do a more focused update, if we knew what part of the file had changed.
+//              System.out.println("PresentationController.update() called, but no work items; reprocessing entire document");
+                workItems.add(new Region(0, fSourceViewer.getDocument().getLength()));
+            }
+            // TODO Optimization: when there are multiple work items, control redrawing explicitly.
+            // See JavaDoc regarding ITextViewer.changeTextPresentation()'s 2nd argument.
+            // Probably not very common (only refactoring or search/replace?), but perhaps worthwhile.
+            for(int n= 0; n < workItems.size(); n++) {
+                IRegion damage= workItems.get(n);
+
+                if (monitor.isCanceled()) {
+                    // Put back whatever we didn't get to, for the next update
+                    fWorkItems.addAll(workItems.subList(n, workItems.size()));
+                    break;
                 }
-                // TODO Remove the work items we actually processed, whether the monitor was canceled or not
-                if (!monitor.isCanceled()) {
-                    fWorkItems.removeAllElements();
+//              System.out.println(">>> Processing damage region: " + damage.getOffset() + ":" + damage.getLength());
+                fWorkItems.addAll(repairDamage(controller, monitor, damage));
+            }
+            if (!monitor.isCanceled()) {
+                RuntimePlugin.getMetricsRegistry().recordTime(MetricsRegistry.PRESENTATION_UPDATE_TIME, getLanguageName(controller), controller.getPath(), start);
+            }
+        }
+    }
+
+    /**
+     * Repairs the given damage. Large regions are cut into line-aligned chunks, which are
+     * colored and submitted to the source viewer one at a time, visible chunks first,
+     * then the others in order of their distance to the viewport at that moment. That
+     * way, the user sees the visible text colored quickly, and the UI thread never has to
+     * apply one huge presentation.
+     * @return the parts of the damage that were not repaired, because the monitor was canceled
+     */
+    private List<IRegion> repairDamage(IParseController parseController, IProgressMonitor monitor, IRegion damage) {
+        List<IRegion> chunks= computeChunks(damage);
+
+        while (!chunks.isEmpty() && !monitor.isCanceled()) {
+            int next= closestToViewport(chunks);
+
+            changeTextPresentationForRegion(parseController, monitor, chunks.get(next));
+            if (!monitor.isCanceled()) {
+                chunks.remove(next);
+            }
+        }
+        return chunks;
+    }
+
+    private List<IRegion> computeChunks(IRegion damage) {
+        List<IRegion> chunks= new ArrayList<IRegion>();
+
+        if (damage.getLength() <= CHUNK_SIZE) {
+            chunks.add(damage);
+            return chunks;
+        }
+        IDocument document= fSourceViewer.getDocument();
+        int end= damage.getOffset() + damage.getLength();
+        int chunkStart= damage.getOffset();
+
+        while (chunkStart < end) {
+            int chunkEnd= Math.min(end, chunkStart + CHUNK_SIZE);
+
+            if (chunkEnd < end) {
+                try {
+                    // Move the chunk end to the start of the next line, if that still makes progress
+                    int line= document.getLineOfOffset(chunkEnd);
+                    int lineEnd= document.getLineOffset(line) + document.getLineLength(line);
+
+                    chunkEnd= Math.min(end, Math.max(chunkStart + 1, lineEnd));
+                } catch (BadLocationException e) {
+                    chunkEnd= end; // the document changed; just repair the rest in one go
                 }
             }
+            chunks.add(new Region(chunkStart, chunkEnd - chunkStart));
+            chunkStart= chunkEnd;
+        }
+        return chunks;
+    }
+
+    private int closestToViewport(List<IRegion> chunks) {
+        int viewportStart= fViewportStart;
+        int viewportEnd= fViewportEnd;
+        int closest= 0;
+        int minDistance= Integer.MAX_VALUE;
+
+        for(int i= 0; i < chunks.size(); i++) {
+            IRegion chunk= chunks.get(i);
+            int distance= Math.max(0, Math.max(chunk.getOffset() - viewportEnd, viewportStart - (chunk.getOffset() + chunk.getLength())));
+
+            if (distance < minDistance) {
+                minDistance= distance;
+                closest= i;
+            }
         }
+        return closest;
     }
 
     private void changeTextPresentationForRegion(IParseController parseController, IProgressMonitor monitor, IRegion damage) {
@@ -173,19 +343,22 @@ public class PresentationController implements IModelListener {
             dumpTokens(parseController.getTokenIterator(damage), ps);
         }
 
-        final TextPresentation presentation= new TextPresentation();
+        final IDocument document= fSourceViewer.getDocument();
+        final long stamp= getModificationStamp(document);
+        final int docLength= document.getLength();
+        final StyleRunCache.Runs runs= new StyleRunCache.Runs();
         ISourcePositionLocator locator= parseController.getSourcePositionLocator();
 
-        aggregateTextPresentation(parseController, monitor, damage, presentation, locator);
+        aggregateStyleRuns(parseController, monitor, damage, runs, locator, docLength);
         if (monitor.isCanceled()) {
             System.err.println("Ignored cancelled presentation update");
-        } else if (!presentation.isEmpty()) {
-            submitTextPresentation(presentation);
+        } else {
+            submitStyleRuns(document, stamp, docLength, damage, runs, getLanguageName(parseController), parseController.getPath());
         }
     }
 
-    private void aggregateTextPresentation(IParseController parseController, IProgressMonitor monitor, IRegion damage, TextPresentation presentation,
-            ISourcePositionLocator locator) {
+    private void aggregateStyleRuns(IParseController parseController, IProgressMonitor monitor, IRegion damage, StyleRunCache.Runs runs,
+            ISourcePositionLocator locator, int docLength) {
         int prevOffset= -1;
         int prevEnd= -1;
         Iterator<Object> tokenIterator= parseController.getTokenIterator(damage);
@@ -200,64 +373,154 @@ public class PresentationController implements IModelListener {
             if (offset <= prevEnd && end >= prevOffset) {
                 continue;
             }
-            changeTokenPresentation(parseController, presentation, token, locator);
+            changeTokenPresentation(parseController, runs, token, locator, docLength);
             prevOffset= offset;
             prevEnd= end;
         }
     }
 
-    private void changeTokenPresentation(IParseController controller, TextPresentation presentation, Object token, ISourcePositionLocator locator) {
+    private void changeTokenPresentation(IParseController controller, StyleRunCache.Runs runs, Object token, ISourcePositionLocator locator, int docLength) {
         TextAttribute attribute= fColorer.getColoring(controller, token);
-
-        StyleRange styleRange= new StyleRange(locator.getStartOffset(token), locator.getEndOffset(token) - locator.getStartOffset(token) + 1,
-                attribute == null ? null : attribute.getForeground(),
-                attribute == null ? null : attribute.getBackground(),
-                attribute == null ? SWT.NORMAL : attribute.getStyle());
+        int start= locator.getStartOffset(token);
+        int length= locator.getEndOffset(token) - start + 1;
 
         // Negative (possibly 0) length style ranges will cause an 
         // IllegalArgumentException in changeTextPresentation(..)
-        if (styleRange.length <= 0 || styleRange.start + styleRange.length > fSourceViewer.getDocument().getLength()) {
-//          System.err.println("Omitting token '" + token + "' w/ empty style range: " + styleRange.start + ":" + styleRange.length);
+        if (length <= 0 || start + length > docLength) {
+//          System.err.println("Omitting token '" + token + "' w/ empty style range: " + start + ":" + length);
         } else {
-            presentation.addStyleRange(styleRange);
+            runs.add(start, length, fStyleRuns.intern(attribute));
         }
     }
 
-    private void submitTextPresentation(final TextPresentation presentation) {
-        if (fSourceViewer == null) {
-            return;
-        }
-
-        final int docLength= (fSourceViewer.getDocument() != null) ? fSourceViewer.getDocument().getLength() : 0;
-        final TextPresentation newPresentation= fixPresentation(presentation, docLength, false /*sort?*/);
-
+    /**
+     * Compares the given runs with the ones the source viewer currently shows, on the UI
+     * thread, and submits only the parts whose style changed.
+     */
+    private void submitStyleRuns(final IDocument document, final long stamp, final int docLength, final IRegion damage, final StyleRunCache.Runs runs,
+            final String language, final IPath path) {
         Display.getDefault().asyncExec(new Runnable() {
             public void run() {
-        	    try {
-                    if (fSourceViewer != null) {
-            	        // The document might have changed since the presentation was computed, so
-            	        // trim the presentation's "result window" to the current document's extent.
-            	        // This avoids upsetting SWT, but there's still a question as to whether
-            	        // this is really the right thing to do. I.e., this assumes that the
-            	        // presentation will get recomputed later on, when the new document change
-            	        // gets noticed. But will it?
-            	        int newDocLength= (fSourceViewer.getDocument() != null) ? fSourceViewer.getDocument().getLength() : 0;
-            	        IRegion presExtent= newPresentation.getExtent();
-
-            	        if (presExtent.getOffset() + presExtent.getLength() > newDocLength) {
-//            	            System.out.println("Trimming result window...");
-            	            newPresentation.setResultWindow(new Region(presExtent.getOffset(), newDocLength - presExtent.getOffset()));
-            	        }
-        	    		fSourceViewer.changeTextPresentation(newPresentation, true);
-        	    	}
-        	    } catch (IllegalArgumentException e) {
-                    int curDocLength= (fSourceViewer.getDocument() != null) ? fSourceViewer.getDocument().getLength() : 0;
-        	        diagnoseStyleRangeError(presentation, curDocLength, e);
-        	    }
+                if (fSourceViewer == null || fSourceViewer.getDocument() != document) {
+                    return;
+                }
+                if (stamp != getModificationStamp(document)) {
+                    // The document changed since the runs were computed, so their offsets are out of
+                    // date. The next parse only repairs the damage of the change itself, so queue
+                    // this region again, widened to wherever its text may have moved.
+                    fWorkItems.add(getShiftedRegion(damage, docLength, document.getLength()));
+                    return;
+                }
+                int styleRanges= 0;
+
+                if (stamp != IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP && runs.isSorted()) {
+                    int[] dirty= fStyleRuns.update(damage.getOffset(), damage.getOffset() + damage.getLength(), runs);
+
+                    for(int i= 0; i < dirty.length; i+= 2) {
+                        styleRanges+= changeTextPresentation(createPresentation(runs, dirty[i], dirty[i + 1]));
+                    }
+                } else {
+                    // Can't tell what the viewer shows for this region afterwards, so forget about it
+                    fStyleRuns.invalidate(damage.getOffset(), damage.getOffset() + damage.getLength());
+                    styleRanges= changeTextPresentation(fixPresentation(createPresentation(runs), document.getLength(), false /*sort?*/));
+                }
+                RuntimePlugin.getMetricsRegistry().record(MetricsRegistry.PRESENTATION_STYLE_RANGES, language, path, styleRanges);
             }
         });
     }
 
+    /**
+     * @return a region of a document of the given new length that covers the text the given
+     * region covered when the document had the given old length, wherever edits moved it
+     */
+    private static IRegion getShiftedRegion(IRegion region, int oldDocLength, int newDocLength) {
+        int lengthChange= newDocLength - oldDocLength;
+        int start= Math.max(0, region.getOffset() + Math.min(0, lengthChange));
+        int end= Math.min(newDocLength, region.getOffset() + region.getLength() + Math.max(0, lengthChange));
+
+        return new Region(start, Math.max(0, end - start));
+    }
+
+    /**
+     * @return the number of style ranges submitted to the source viewer
+     */
+    private int changeTextPresentation(final TextPresentation presentation) {
+        if (presentation.isEmpty()) {
+            return 0;
+        }
+        try {
+            // In case the document couldn't tell whether it changed since the presentation was
+            // computed, trim the presentation's "result window" to the current document's extent.
+            // This avoids upsetting SWT; the presentation will get recomputed later on, when the
+            // document change gets noticed.
+            int newDocLength= (fSourceViewer.getDocument() != null) ? fSourceViewer.getDocument().getLength() : 0;
+            IRegion presExtent= presentation.getExtent();
+
+            if (presExtent.getOffset() + presExtent.getLength() > newDocLength) {
+                presentation.setResultWindow(new Region(presExtent.getOffset(), newDocLength - presExtent.getOffset()));
+            }
+            fSourceViewer.changeTextPresentation(presentation, true);
+        } catch (IllegalArgumentException e) {
+            int curDocLength= (fSourceViewer.getDocument() != null) ? fSourceViewer.getDocument().getLength() : 0;
+            diagnoseStyleRangeError(presentation, curDocLength, e);
+        }
+        return presentation.getDenumerableRanges();
+    }
+
+    /**
+     * @return a presentation of all given runs
+     */
+    private TextPresentation createPresentation(StyleRunCache.Runs runs) {
+        TextPresentation presentation= new TextPresentation(runs.size());
+
+        for(int i= 0; i < runs.size(); i++) {
+            presentation.addStyleRange(createStyleRange(runs.getOffset(i), runs.getLength(i), runs.getStyle(i)));
+        }
+        return presentation;
+    }
+
+    /**
+     * @return a presentation covering at least the given interval, consisting of the given
+     * (sorted) runs that intersect it, with the gaps between them explicitly unstyled, so
+     * that stale styles in the gaps get cleared as well
+     */
+    private TextPresentation createPresentation(StyleRunCache.Runs runs, int start, int end) {
+        TextPresentation presentation= new TextPresentation();
+        int pos= start;
+
+        for(int i= runs.firstEndingAfter(start); i < runs.size() && runs.getOffset(i) < end; i++) {
+            if (runs.getOffset(i) > pos) {
+                presentation.addStyleRange(createStyleRange(pos, runs.getOffset(i) - pos, StyleRunCache.NO_STYLE));
+            }
+            presentation.addStyleRange(createStyleRange(runs.getOffset(i), runs.getLength(i), runs.getStyle(i)));
+            pos= runs.getEnd(i);
+        }
+        if (pos < end) {
+            presentation.addStyleRange(createStyleRange(pos, end - pos, StyleRunCache.NO_STYLE));
+        }
+        return presentation;
+    }
+
+    private StyleRange createStyleRange(int start, int length, int styleID) {
+        TextAttribute attribute= fStyleRuns.getAttribute(styleID);
+
+        return new StyleRange(start, length,
+                attribute == null ? null : attribute.getForeground(),
+                attribute == null ? null : attribute.getBackground(),
+                attribute == null ? SWT.NORMAL : attribute.getStyle());
+    }
+
+    private static long getModificationStamp(IDocument document) {
+        if (document instanceof IDocumentExtension4) {
+            return ((IDocumentExtension4) document).getModificationStamp();
+        }
+        return IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+    }
+
+    private static String getLanguageName(IParseController controller) {
+        return (controller.getLanguage() != null) ? controller.getLanguage().getName() : null;
+    }
+
     /**
      * Adjusts the StyleRanges in the given presentation as necessary to ones that
      * should be acceptable to ITextViewer.changeTextPresentation().
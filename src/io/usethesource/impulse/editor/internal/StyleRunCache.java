@@ -0,0 +1,284 @@
+package io.usethesource.impulse.editor.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jface.text.TextAttribute;
+
+/**
+ * The style runs that a {@link PresentationController} has applied to its source viewer,
+ * kept in primitive arrays sorted by offset, so that a freshly computed presentation can
+ * be compared with what is on screen without allocating a StyleRange per token.
+ * TextAttributes are interned, and runs refer to them by their style ID.<br>
+ * The cache must be told about every document change through
+ * {@link #documentChanged(int, int, int)}, so that the runs move along with the text,
+ * just like the styles held by the text widget do.
+ */
+public class StyleRunCache {
+    /**
+     * The style ID of tokens that have no TextAttribute
+     */
+    public static final int NO_STYLE= 0;
+
+    /**
+     * Dirty intervals are only kept apart if at least this many unchanged runs lie between
+     * them; otherwise the unchanged runs are simply submitted again, which is cheaper than
+     * an extra round trip to the text widget.
+     */
+    private static final int MIN_UNCHANGED_RUNS_BETWEEN= 16;
+
+    private final List<TextAttribute> fAttributes= new ArrayList<TextAttribute>();
+
+    private final Map<TextAttribute, Integer> fStyleIDs= new HashMap<TextAttribute, Integer>();
+
+    private final Runs fRuns= new Runs();
+
+    public StyleRunCache() {
+        fAttributes.add(null); // NO_STYLE
+    }
+
+    /**
+     * @return the style ID of the given attribute, which may be null
+     */
+    public int intern(TextAttribute attribute) {
+        if (attribute == null) {
+            return NO_STYLE;
+        }
+        synchronized (fAttributes) {
+            Integer id= fStyleIDs.get(attribute);
+
+            if (id == null) {
+                id= fAttributes.size();
+                fAttributes.add(attribute);
+                fStyleIDs.put(attribute, id);
+            }
+            return id;
+        }
+    }
+
+    public TextAttribute getAttribute(int styleID) {
+        synchronized (fAttributes) {
+            return fAttributes.get(styleID);
+        }
+    }
+
+    /**
+     * Moves the runs following the given document change. Runs that overlap the replaced text,
+     * or that contain the insertion point, are dropped, since the widget's styles for them
+     * can't be trusted anymore.
+     */
+    public synchronized void documentChanged(int offset, int replacedLength, int insertedLength) {
+        int first= fRuns.firstEndingAfter(offset);
+        int last= first;
+
+        while (last < fRuns.fSize && fRuns.fOffsets[last] < offset + replacedLength) {
+            last++;
+        }
+        fRuns.remove(first, last);
+        fRuns.shift(first, insertedLength - replacedLength);
+    }
+
+    /**
+     * Forgets the runs that overlap the given range, so that they are submitted again the
+     * next time they are compared.
+     */
+    public synchronized void invalidate(int start, int end) {
+        int first= fRuns.firstEndingAfter(start);
+        int last= first;
+
+        while (last < fRuns.fSize && fRuns.fOffsets[last] < end) {
+            last++;
+        }
+        fRuns.remove(first, last);
+    }
+
+    public synchronized void clear() {
+        fRuns.fSize= 0;
+    }
+
+    /**
+     * Replaces the cached runs within the given range (widened to include the given runs)
+     * by the given runs, which must be sorted and must not overlap.
+     * @return the intervals that need to be submitted to bring the widget up to date, as
+     * consecutive start and end offsets; an interval covers every new run whose style
+     * differs from what was cached, and every cached run that was not found unchanged
+     * among the new runs
+     */
+    public synchronized int[] update(int start, int end, Runs newRuns) {
+        if (newRuns.fSize > 0) {
+            start= Math.min(start, newRuns.fOffsets[0]);
+            end= Math.max(end, newRuns.getEnd(newRuns.fSize - 1));
+        }
+        int first= fRuns.firstEndingAfter(start);
+        int last= first;
+
+        while (last < fRuns.fSize && fRuns.fOffsets[last] < end) {
+            last++;
+        }
+
+        int[] dirty= new int[8];
+        int numDirty= 0;
+        int unchangedSinceDirty= 0;
+        int i= first, j= 0;
+
+        while (i < last || j < newRuns.fSize) {
+            int dirtyStart, dirtyEnd;
+
+            if (i < last && j < newRuns.fSize && fRuns.fOffsets[i] == newRuns.fOffsets[j]
+                    && fRuns.fLengths[i] == newRuns.fLengths[j] && fRuns.fStyles[i] == newRuns.fStyles[j]) {
+                unchangedSinceDirty++;
+                i++;
+                j++;
+                continue;
+            } else if (i < last && (j >= newRuns.fSize || fRuns.fOffsets[i] <= newRuns.fOffsets[j])) {
+                dirtyStart= fRuns.fOffsets[i];
+                dirtyEnd= fRuns.getEnd(i);
+                i++;
+            } else {
+                dirtyStart= newRuns.fOffsets[j];
+                dirtyEnd= newRuns.getEnd(j);
+                j++;
+            }
+            if (numDirty > 0 && (unchangedSinceDirty < MIN_UNCHANGED_RUNS_BETWEEN || dirtyStart <= dirty[numDirty - 1])) {
+                dirty[numDirty - 1]= Math.max(dirty[numDirty - 1], dirtyEnd);
+            } else {
+                if (numDirty == dirty.length) {
+                    dirty= Arrays.copyOf(dirty, 2 * numDirty);
+                }
+                dirty[numDirty++]= dirtyStart;
+                dirty[numDirty++]= dirtyEnd;
+            }
+            unchangedSinceDirty= 0;
+        }
+        fRuns.replace(first, last, newRuns);
+        return Arrays.copyOf(dirty, numDirty);
+    }
+
+    /**
+     * A sequence of style runs, in three parallel arrays of offsets, lengths and style IDs.
+     * Runs are normally added in order of their offsets; {@link #isSorted()} tells whether
+     * that was the case.
+     */
+    public static class Runs {
+        private int[] fOffsets;
+
+        private int[] fLengths;
+
+        private int[] fStyles;
+
+        private int fSize;
+
+        private boolean fSorted= true;
+
+        public Runs() {
+            this(64);
+        }
+
+        public Runs(int capacity) {
+            fOffsets= new int[capacity];
+            fLengths= new int[capacity];
+            fStyles= new int[capacity];
+        }
+
+        public void add(int offset, int length, int styleID) {
+            if (fSize > 0 && offset < getEnd(fSize - 1)) {
+                fSorted= false;
+            }
+            ensureCapacity(fSize + 1);
+            fOffsets[fSize]= offset;
+            fLengths[fSize]= length;
+            fStyles[fSize]= styleID;
+            fSize++;
+        }
+
+        public int size() {
+            return fSize;
+        }
+
+        /**
+         * @return true if the runs were added in order, without overlap
+         */
+        public boolean isSorted() {
+            return fSorted;
+        }
+
+        public int getOffset(int i) {
+            return fOffsets[i];
+        }
+
+        public int getLength(int i) {
+            return fLengths[i];
+        }
+
+        public int getEnd(int i) {
+            return fOffsets[i] + fLengths[i];
+        }
+
+        public int getStyle(int i) {
+            return fStyles[i];
+        }
+
+        /**
+         * @return the index of the first run that ends after the given offset, or size() if
+         * there is none; only meaningful if the runs are sorted
+         */
+        public int firstEndingAfter(int offset) {
+            int lo= 0, hi= fSize;
+
+            while (lo < hi) {
+                int mid= (lo + hi) >>> 1;
+
+                if (getEnd(mid) <= offset) {
+                    lo= mid + 1;
+                } else {
+                    hi= mid;
+                }
+            }
+            return lo;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > fOffsets.length) {
+                int newCapacity= Math.max(capacity, 2 * fOffsets.length);
+
+                fOffsets= Arrays.copyOf(fOffsets, newCapacity);
+                fLengths= Arrays.copyOf(fLengths, newCapacity);
+                fStyles= Arrays.copyOf(fStyles, newCapacity);
+            }
+        }
+
+        private void remove(int from, int to) {
+            replace(from, to, null);
+        }
+
+        /**
+         * Replaces the runs with indices in [from, to) by the given runs (if any).
+         */
+        private void replace(int from, int to, Runs runs) {
+            int numNew= (runs != null) ? runs.fSize : 0;
+            int delta= numNew - (to - from);
+
+            ensureCapacity(fSize + delta);
+            System.arraycopy(fOffsets, to, fOffsets, to + delta, fSize - to);
+            System.arraycopy(fLengths, to, fLengths, to + delta, fSize - to);
+            System.arraycopy(fStyles, to, fStyles, to + delta, fSize - to);
+            if (numNew > 0) {
+                System.arraycopy(runs.fOffsets, 0, fOffsets, from, numNew);
+                System.arraycopy(runs.fLengths, 0, fLengths, from, numNew);
+                System.arraycopy(runs.fStyles, 0, fStyles, from, numNew);
+            }
+            fSize+= delta;
+        }
+
+        private void shift(int from, int delta) {
+            if (delta != 0) {
+                for(int i= from; i < fSize; i++) {
+                    fOffsets[i]+= delta;
+                }
+            }
+        }
+    }
+}
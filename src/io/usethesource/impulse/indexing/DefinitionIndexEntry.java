@@ -26,6 +26,17 @@ public class DefinitionIndexEntry extends IndexEntry {
 
     public DefinitionIndexEntry(int type, String name, int modifiers, IFile file, int start, int end) {
         super(type, name, file, start, end);
+        fModifiers= modifiers;
+    }
+
+    @Override
+    protected int getExtraData() {
+        return fModifiers;
+    }
+
+    @Override
+    protected void setExtraData(int data) {
+        fModifiers= data;
     }
 
     public void saveToStream(FileWriter writer) throws IOException {
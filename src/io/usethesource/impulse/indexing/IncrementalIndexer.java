@@ -0,0 +1,299 @@
+package io.usethesource.impulse.indexing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceChangeListener;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+import io.usethesource.impulse.core.ErrorHandler;
+import io.usethesource.impulse.language.Language;
+import io.usethesource.impulse.language.ServiceFactory;
+
+/**
+ * Keeps the persistent indexes of a language up to date by reacting to resource deltas,
+ * instead of re-indexing entire projects. Added and changed files are re-parsed and
+ * their entries replaced; the entries of removed files are dropped. The work is done in
+ * a background job, since resource change listeners should return quickly. Only the
+ * entries of the changed files are written, as a delta to the mapped {@link IndexFile};
+ * see {@link Indexer#saveChanges(IProject, java.util.Collection)}.<br>
+ * The language registry installs an IncrementalIndexer for every language that has an
+ * index contributor, via {@link #installFor(Language)}.
+ */
+public class IncrementalIndexer extends Job implements IResourceChangeListener {
+    /**
+     * Delay before processing changes, so that bursts of resource deltas are coalesced
+     */
+    private static final long INDEXING_DELAY= 500;
+
+    /**
+     * The installed incremental indexers, by language name; guarded by itself
+     */
+    private static final Map<String, IncrementalIndexer> sInstalled= new HashMap<String, IncrementalIndexer>();
+
+    private final Language fLanguage;
+
+    /**
+     * Holds the entries of the files being re-indexed only; created lazily, since loading
+     * the language's services may activate other bundles. Only accessed from the job.
+     */
+    private Indexer fIndexer;
+
+    private volatile boolean fInstalled;
+
+    /**
+     * Files added or changed since the job last ran; guarded by itself
+     */
+    private final Set<IFile> fChangedFiles= new LinkedHashSet<IFile>();
+
+    /**
+     * Files removed since the job last ran; guarded by fChangedFiles
+     */
+    private final Set<IFile> fRemovedFiles= new LinkedHashSet<IFile>();
+
+    /**
+     * Projects closed or removed since the job last ran; guarded by fChangedFiles
+     */
+    private final Set<IProject> fRemovedProjects= new HashSet<IProject>();
+
+    public IncrementalIndexer(Language language) {
+        super("Indexing " + language.getName() + " sources");
+        setSystem(true);
+        fLanguage= language;
+    }
+
+    /**
+     * Installs an IncrementalIndexer for the given language, unless the language has no
+     * index contributor, or one is installed already.
+     */
+    public static void installFor(Language language) {
+        if (!ServiceFactory.getInstance().hasIndexContributor(language)) {
+            return;
+        }
+        synchronized (sInstalled) {
+            if (!sInstalled.containsKey(language.getName())) {
+                IncrementalIndexer indexer= new IncrementalIndexer(language);
+
+                indexer.install();
+                sInstalled.put(language.getName(), indexer);
+            }
+        }
+    }
+
+    /**
+     * Uninstalls the IncrementalIndexer for the given language, if any.
+     */
+    public static void uninstallFor(Language language) {
+        IncrementalIndexer indexer;
+
+        synchronized (sInstalled) {
+            indexer= sInstalled.remove(language.getName());
+        }
+        if (indexer != null) {
+            indexer.uninstall();
+        }
+    }
+
+    public static void uninstallAll() {
+        List<IncrementalIndexer> indexers;
+
+        synchronized (sInstalled) {
+            indexers= new ArrayList<IncrementalIndexer>(sInstalled.values());
+            sInstalled.clear();
+        }
+        for(IncrementalIndexer indexer: indexers) {
+            indexer.uninstall();
+        }
+    }
+
+    public void install() {
+        fInstalled= true;
+        ResourcesPlugin.getWorkspace().addResourceChangeListener(this, IResourceChangeEvent.POST_CHANGE);
+    }
+
+    public void uninstall() {
+        fInstalled= false;
+        ResourcesPlugin.getWorkspace().removeResourceChangeListener(this);
+        cancel();
+    }
+
+    public void resourceChanged(IResourceChangeEvent event) {
+        if (event.getDelta() == null) {
+            return;
+        }
+        // Whether there's any work for the job; e.g. marker-only deltas leave it alone
+        final boolean[] recorded= { false };
+
+        try {
+            event.getDelta().accept(new IResourceDeltaVisitor() {
+                public boolean visit(IResourceDelta delta) throws CoreException {
+                    IResource resource= delta.getResource();
+
+                    if (resource instanceof IProject) {
+                        if (delta.getKind() == IResourceDelta.REMOVED || !((IProject) resource).isOpen()) {
+                            synchronized (fChangedFiles) {
+                                recorded[0]|= fRemovedProjects.add((IProject) resource);
+                            }
+                            return false;
+                        }
+                    } else if (resource instanceof IFile) {
+                        IFile file= (IFile) resource;
+
+                        if (isIndexedFile(file)) {
+                            recorded[0]|= recordDelta(file, delta);
+                        }
+                        return false;
+                    }
+                    return true;
+                }
+            });
+        } catch (CoreException e) {
+            ErrorHandler.logError("Error while processing resource delta for " + fLanguage.getName() + " index", e);
+        }
+        if (recorded[0]) {
+            schedule(INDEXING_DELAY);
+        }
+    }
+
+    /**
+     * @return true if the given delta affects the index
+     */
+    private boolean recordDelta(IFile file, IResourceDelta delta) {
+        synchronized (fChangedFiles) {
+            switch (delta.getKind()) {
+            case IResourceDelta.ADDED:
+                fRemovedFiles.remove(file);
+                fChangedFiles.add(file);
+                return true;
+            case IResourceDelta.REMOVED:
+                fChangedFiles.remove(file);
+                fRemovedFiles.add(file);
+                return true;
+            case IResourceDelta.CHANGED:
+                if ((delta.getFlags() & (IResourceDelta.CONTENT | IResourceDelta.REPLACED | IResourceDelta.ENCODING)) != 0) {
+                    fChangedFiles.add(file);
+                    return true;
+                }
+                break;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    protected IStatus run(IProgressMonitor monitor) {
+        Set<IFile> changedFiles;
+        Set<IFile> removedFiles;
+        Set<IProject> removedProjects;
+
+        synchronized (fChangedFiles) {
+            changedFiles= new LinkedHashSet<IFile>(fChangedFiles);
+            removedFiles= new LinkedHashSet<IFile>(fRemovedFiles);
+            removedProjects= new HashSet<IProject>(fRemovedProjects);
+            fChangedFiles.clear();
+            fRemovedFiles.clear();
+            fRemovedProjects.clear();
+        }
+
+        // The changed and removed files, by project; the indexes of removed projects are
+        // left alone, so that they're still there when a closed project is reopened
+        Map<IProject, List<IFile>> filesByProject= new LinkedHashMap<IProject, List<IFile>>();
+
+        for(IFile file: removedFiles) {
+            addFile(filesByProject, file, removedProjects);
+        }
+        for(IFile file: changedFiles) {
+            addFile(filesByProject, file, removedProjects);
+        }
+
+        Set<IFile> requeued= new LinkedHashSet<IFile>();
+
+        for(Map.Entry<IProject, List<IFile>> entry: filesByProject.entrySet()) {
+            IProject project= entry.getKey();
+            Indexer indexer= getIndexer();
+            List<String> paths= new ArrayList<String>();
+
+            indexer.clearEntries();
+            for(IFile file: entry.getValue()) {
+                if (monitor.isCanceled()) {
+                    // Don't lose the files we didn't get to
+                    requeued.add(file);
+                    continue;
+                }
+                try {
+                    if (changedFiles.contains(file)) {
+                        indexer.indexFile(file, monitor);
+                    }
+                    paths.add(file.getFullPath().toString());
+                } catch (CoreException e) {
+                    ErrorHandler.logError("Error while indexing " + file.getFullPath(), e);
+                }
+            }
+            if (!paths.isEmpty()) {
+                indexer.saveChanges(project, paths);
+            }
+            indexer.clearEntries();
+        }
+        if (!requeued.isEmpty()) {
+            synchronized (fChangedFiles) {
+                for(IFile file: requeued) {
+                    // Deltas that arrived in the meantime take precedence
+                    if (!fChangedFiles.contains(file) && !fRemovedFiles.contains(file)) {
+                        (removedFiles.contains(file) ? fRemovedFiles : fChangedFiles).add(file);
+                    }
+                }
+            }
+            if (fInstalled) {
+                schedule(INDEXING_DELAY);
+            }
+            return Status.CANCEL_STATUS;
+        }
+        return Status.OK_STATUS;
+    }
+
+    private void addFile(Map<IProject, List<IFile>> filesByProject, IFile file, Set<IProject> removedProjects) {
+        IProject project= file.getProject();
+
+        if (!removedProjects.contains(project)) {
+            List<IFile> files= filesByProject.get(project);
+
+            if (files == null) {
+                filesByProject.put(project, files= new ArrayList<IFile>());
+            }
+            files.add(file);
+        }
+    }
+
+    /**
+     * @return true if the given file is a source file of the language being indexed
+     */
+    private boolean isIndexedFile(IFile file) {
+        String ext= file.getFileExtension();
+
+        return ext != null && fLanguage.hasExtension(ext);
+    }
+
+    private Indexer getIndexer() {
+        if (fIndexer == null) {
+            fIndexer= new Indexer(fLanguage.getName());
+        }
+        return fIndexer;
+    }
+}
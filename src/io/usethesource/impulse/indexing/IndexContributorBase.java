@@ -37,17 +37,27 @@ public abstract class IndexContributorBase implements ILanguageService {
      * @return
      */
     public IndexEntry parseEntry(String s) {
-        char kind= s.charAt(0);
-        IndexEntry entry;
+        IndexEntry entry= createEntry(s.charAt(0));
 
-        if (kind == DefinitionIndexEntry.DEFINITION_TYPE)
-            entry= new DefinitionIndexEntry();
-        else if (kind == ReferenceIndexEntry.REFERENCE_TYPE)
-            entry= new ReferenceIndexEntry();
-        else
+        if (entry == null)
             return null;
 
         entry.parseFromString(s);
         return entry;
     }
+
+    /**
+     * Create an empty entry of the given kind, to be filled in from a persistent index.
+     * Derived classes that contribute other kinds of entries should override this.
+     * @param kind the value of {@link IndexEntry#getEntryKind()}
+     * @return the new entry, or null if the kind is unknown
+     */
+    public IndexEntry createEntry(char kind) {
+        if (kind == DefinitionIndexEntry.DEFINITION_TYPE)
+            return new DefinitionIndexEntry();
+        else if (kind == ReferenceIndexEntry.REFERENCE_TYPE)
+            return new ReferenceIndexEntry();
+        else
+            return null;
+    }
 }
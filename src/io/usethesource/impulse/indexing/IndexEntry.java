@@ -37,6 +37,39 @@ public abstract class IndexEntry {
 
     public abstract char getEntryKind();
 
+    public int getType() {
+        return fType;
+    }
+
+    public String getName() {
+        return fName;
+    }
+
+    /**
+     * @return the workspace-relative path of the file containing the indexed entity
+     */
+    public String getPath() {
+        return fPath;
+    }
+
+    public int getStart() {
+        return fStart;
+    }
+
+    public int getEnd() {
+        return fEnd;
+    }
+
+    /**
+     * Derived classes that carry one extra field may override this, together with
+     * {@link #setExtraData(int)}, to have it stored in the binary {@link IndexFile}.
+     */
+    protected int getExtraData() {
+        return 0;
+    }
+
+    protected void setExtraData(int data) { }
+
     public void saveToStream(FileWriter writer) throws IOException {
         writer.write(getEntryKind());
         writer.write(':');
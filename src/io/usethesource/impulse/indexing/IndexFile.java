@@ -0,0 +1,604 @@
+package io.usethesource.impulse.indexing;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A read-only, memory-mapped view of a persistent index, as written by
+ * {@link #write(File, Collection)}. Entries are only turned into {@link IndexEntry}
+ * objects when they are asked for, so that huge indexes can be searched without
+ * loading them onto the heap.<br>
+ * The file consists of a header, a table of string offsets, fixed-width entry records
+ * sorted by name, a table of entry numbers sorted by path, a table of superseded paths,
+ * and finally the UTF-8 bytes of all strings. All strings are stored once, sorted, and
+ * referred to by their rank, so lookups are binary searches.<br>
+ * Every write produces a new version of the file, named after the given file plus a
+ * version number, since a file that is mapped into memory can't be replaced or deleted
+ * on all platforms. Older versions are deleted once they can be.<br>
+ * {@link #update(File, Map, IndexContributorBase)} doesn't rewrite the whole index, but
+ * writes a delta next to it, holding the new entries of the updated files and the paths
+ * whose entries it supersedes. The delta is merged into a new version of the index once
+ * it grows too large.
+ */
+public class IndexFile {
+    /**
+     * Identifies index files; spells "IMPX".
+     */
+    private static final int FORMAT_MAGIC= 0x494d5058;
+
+    /**
+     * Incremented whenever the format written by {@link #write(File, Collection)} changes.
+     */
+    private static final int FORMAT_VERSION= 2;
+
+    private static final int HEADER_SIZE= 20;
+
+    /**
+     * Kind, type, name ID, path ID, start, end, extra data; all ints
+     */
+    private static final int ENTRY_SIZE= 28;
+
+    /**
+     * The number of entries and superseded paths a delta may hold before it gets merged
+     * into the index, unless a quarter of the index is larger
+     */
+    private static final int MIN_DELTA_SIZE_TO_MERGE= 1000;
+
+    private static final IndexFile EMPTY= new IndexFile(ByteBuffer.allocate(0), 0, 0, 0);
+
+    private final ByteBuffer fBuffer;
+
+    private final int fNumEntries;
+
+    private final int fNumStrings;
+
+    private final int fNumSuperseded;
+
+    private final int fEntriesOffset;
+
+    private final int fByPathOffset;
+
+    private final int fSupersededOffset;
+
+    private final int fStringsOffset;
+
+    /**
+     * The delta whose entries replace those of this index for the paths it supersedes,
+     * if any
+     */
+    private final IndexFile fDelta;
+
+    private IndexFile(ByteBuffer buffer, int numEntries, int numStrings, int numSuperseded) {
+        fBuffer= buffer;
+        fNumEntries= numEntries;
+        fNumStrings= numStrings;
+        fNumSuperseded= numSuperseded;
+        fEntriesOffset= HEADER_SIZE + 4 * (numStrings + 1);
+        fByPathOffset= fEntriesOffset + ENTRY_SIZE * numEntries;
+        fSupersededOffset= fByPathOffset + 4 * numEntries;
+        fStringsOffset= fSupersededOffset + 4 * numSuperseded;
+        fDelta= null;
+    }
+
+    private IndexFile(IndexFile base, IndexFile delta) {
+        fBuffer= base.fBuffer;
+        fNumEntries= base.fNumEntries;
+        fNumStrings= base.fNumStrings;
+        fNumSuperseded= base.fNumSuperseded;
+        fEntriesOffset= base.fEntriesOffset;
+        fByPathOffset= base.fByPathOffset;
+        fSupersededOffset= base.fSupersededOffset;
+        fStringsOffset= base.fStringsOffset;
+        fDelta= delta;
+    }
+
+    /**
+     * Maps the most recent version of the given index file, and its delta, if any, into
+     * memory. A missing index yields an empty index.
+     * @return the index, or null if it was written in an unknown format (e.g. by an older
+     * release) or is truncated, in which case it needs to be rebuilt
+     * @throws IOException if the file can't be read
+     */
+    public static IndexFile open(File file) throws IOException {
+        long[] versions= getVersions(file);
+
+        if (versions.length == 0) {
+            // Older releases wrote their index to the unversioned file
+            return file.exists() ? null : EMPTY;
+        }
+        File versionFile= getVersionFile(file, versions[versions.length - 1]);
+        IndexFile base= map(versionFile);
+        long[] deltaVersions= getVersions(getDeltaFile(versionFile));
+
+        if (base == null || deltaVersions.length == 0) {
+            return base;
+        }
+        IndexFile delta= map(getVersionFile(getDeltaFile(versionFile), deltaVersions[deltaVersions.length - 1]));
+
+        return (delta != null) ? new IndexFile(base, delta) : null;
+    }
+
+    /**
+     * @return the given file, mapped into memory, or null if it was written in an unknown
+     * format or is truncated
+     */
+    private static IndexFile map(File file) throws IOException {
+        RandomAccessFile raf= new RandomAccessFile(file, "r");
+
+        try {
+            MappedByteBuffer buffer= raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != FORMAT_MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+                return null;
+            }
+            int numEntries= buffer.getInt(8);
+            int numStrings= buffer.getInt(12);
+            int numSuperseded= buffer.getInt(16);
+
+            if (!isComplete(buffer, numEntries, numStrings, numSuperseded)) {
+                return null;
+            }
+            return new IndexFile(buffer, numEntries, numStrings, numSuperseded);
+        } finally {
+            // The mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * @return true if the given buffer is large enough to hold the given number of
+     * entries, strings and superseded paths
+     */
+    private static boolean isComplete(ByteBuffer buffer, int numEntries, int numStrings, int numSuperseded) {
+        if (numEntries < 0 || numStrings < 0 || numSuperseded < 0) {
+            return false;
+        }
+        long stringsOffset= HEADER_SIZE + 4L * (numStrings + 1) + (long) (ENTRY_SIZE + 4) * numEntries + 4L * numSuperseded;
+
+        return stringsOffset <= buffer.limit()
+                && stringsOffset + buffer.getInt(HEADER_SIZE + 4 * numStrings) <= buffer.limit();
+    }
+
+    /**
+     * Writes the given entries as a new version of the given index file, in the format read
+     * by {@link #open(File)}. Readers that still have an older version mapped into memory
+     * are not disturbed; older versions that can't be deleted yet are deleted by a later
+     * write.
+     */
+    public static synchronized void write(File file, Collection<IndexEntry> entries) throws IOException {
+        long[] oldVersions= getVersions(file);
+        long version= (oldVersions.length > 0) ? oldVersions[oldVersions.length - 1] + 1 : 1;
+
+        writeFile(file, getVersionFile(file, version), entries, Collections.<String>emptySet());
+        for(long oldVersion: oldVersions) {
+            deleteVersion(getVersionFile(file, oldVersion));
+        }
+        deleteIfPossible(file);
+    }
+
+    /**
+     * Replaces the entries of the given index file for the given workspace-relative paths
+     * by the given ones, by writing a new delta. An empty collection of entries removes
+     * a path from the index. Once the delta grows too large, it is merged into a new
+     * version of the index instead.
+     * Deltas are only ever written on top of a complete index, as written by
+     * {@link #write(File, Collection)}.
+     * @param contributor used to read back the entries of the current delta
+     * @return false if the index can't be updated because it needs to be (re)built in
+     * full, since it doesn't exist yet, or can't be read; see {@link #open(File)}
+     */
+    public static synchronized boolean update(File file, Map<String, ? extends Collection<IndexEntry>> entriesByPath, IndexContributorBase contributor) throws IOException {
+        long[] versions= getVersions(file);
+        IndexFile index= (versions.length > 0) ? open(file) : null;
+
+        if (index == null) {
+            return false;
+        }
+        Set<String> superseded= new HashSet<String>(entriesByPath.keySet());
+        List<IndexEntry> deltaEntries= new ArrayList<IndexEntry>();
+
+        if (index.fDelta != null) {
+            IndexFile delta= index.fDelta;
+
+            for(int i= 0; i < delta.fNumSuperseded; i++) {
+                superseded.add(delta.getString(delta.fBuffer.getInt(delta.fSupersededOffset + 4 * i)));
+            }
+            for(int i= 0; i < delta.fNumEntries; i++) {
+                IndexEntry entry= delta.getOwnEntry(i, contributor);
+
+                if (entry != null && !entriesByPath.containsKey(entry.getPath())) {
+                    deltaEntries.add(entry);
+                }
+            }
+        }
+        for(Collection<IndexEntry> entries: entriesByPath.values()) {
+            deltaEntries.addAll(entries);
+        }
+
+        if (deltaEntries.size() + superseded.size() > Math.max(MIN_DELTA_SIZE_TO_MERGE, index.fNumEntries / 4)) {
+            // Merge the delta into a new version of the index
+            for(int i= 0; i < index.fNumEntries; i++) {
+                IndexEntry entry= index.getOwnEntry(i, contributor);
+
+                if (entry != null && !superseded.contains(entry.getPath())) {
+                    deltaEntries.add(entry);
+                }
+            }
+            write(file, deltaEntries);
+        } else {
+            File deltaFile= getDeltaFile(getVersionFile(file, versions[versions.length - 1]));
+            long[] oldDeltaVersions= getVersions(deltaFile);
+            long deltaVersion= (oldDeltaVersions.length > 0) ? oldDeltaVersions[oldDeltaVersions.length - 1] + 1 : 1;
+
+            writeFile(file, getVersionFile(deltaFile, deltaVersion), deltaEntries, superseded);
+            for(long oldDeltaVersion: oldDeltaVersions) {
+                deleteIfPossible(getVersionFile(deltaFile, oldDeltaVersion));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the given entries and superseded paths to the given target file, by way of
+     * a temporary file next to the given index file.
+     */
+    private static void writeFile(File file, File target, Collection<IndexEntry> entries, Collection<String> superseded) throws IOException {
+        TreeSet<String> stringSet= new TreeSet<String>(superseded);
+
+        for(IndexEntry entry: entries) {
+            stringSet.add(nonNull(entry.getName()));
+            stringSet.add(nonNull(entry.getPath()));
+        }
+        final Map<String, Integer> stringIDs= new HashMap<String, Integer>();
+        List<byte[]> stringBytes= new ArrayList<byte[]>(stringSet.size());
+
+        for(String s: stringSet) {
+            stringIDs.put(s, stringIDs.size());
+            stringBytes.add(s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        IndexEntry[] byName= entries.toArray(new IndexEntry[entries.size()]);
+
+        Arrays.sort(byName, new Comparator<IndexEntry>() {
+            public int compare(IndexEntry e1, IndexEntry e2) {
+                int result= Integer.compare(stringIDs.get(nonNull(e1.getName())), stringIDs.get(nonNull(e2.getName())));
+
+                return (result != 0) ? result : Integer.compare(stringIDs.get(nonNull(e1.getPath())), stringIDs.get(nonNull(e2.getPath())));
+            }
+        });
+        final int[] pathIDs= new int[byName.length];
+        Integer[] byPath= new Integer[byName.length];
+
+        for(int i= 0; i < byName.length; i++) {
+            pathIDs[i]= stringIDs.get(nonNull(byName[i].getPath()));
+            byPath[i]= i;
+        }
+        Arrays.sort(byPath, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return Integer.compare(pathIDs[i1], pathIDs[i2]);
+            }
+        });
+        int[] supersededIDs= new int[superseded.size()];
+        int numSuperseded= 0;
+
+        for(String path: superseded) {
+            supersededIDs[numSuperseded++]= stringIDs.get(path);
+        }
+        Arrays.sort(supersededIDs);
+
+        File tmpFile= new File(file.getPath() + ".tmp");
+        DataOutputStream out= new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+
+        try {
+            out.writeInt(FORMAT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(byName.length);
+            out.writeInt(stringBytes.size());
+            out.writeInt(supersededIDs.length);
+
+            int stringOffset= 0;
+            for(byte[] bytes: stringBytes) {
+                out.writeInt(stringOffset);
+                stringOffset+= bytes.length;
+            }
+            out.writeInt(stringOffset);
+
+            for(IndexEntry entry: byName) {
+                out.writeInt(entry.getEntryKind());
+                out.writeInt(entry.getType());
+                out.writeInt(stringIDs.get(nonNull(entry.getName())));
+                out.writeInt(stringIDs.get(nonNull(entry.getPath())));
+                out.writeInt(entry.getStart());
+                out.writeInt(entry.getEnd());
+                out.writeInt(entry.getExtraData());
+            }
+            for(Integer entryNum: byPath) {
+                out.writeInt(entryNum);
+            }
+            for(int pathID: supersededIDs) {
+                out.writeInt(pathID);
+            }
+            for(byte[] bytes: stringBytes) {
+                out.write(bytes);
+            }
+        } finally {
+            out.close();
+        }
+        try {
+            Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmpFile.toPath(), target.toPath());
+        }
+    }
+
+    /**
+     * @return the versions of the given file that exist, in ascending order
+     */
+    private static long[] getVersions(File file) {
+        String prefix= file.getName() + ".";
+        String[] names= file.getAbsoluteFile().getParentFile().list();
+        long[] versions= new long[(names != null) ? names.length : 0];
+        int numVersions= 0;
+
+        for(int i= 0; i < versions.length; i++) {
+            if (names[i].startsWith(prefix)) {
+                try {
+                    versions[numVersions]= Long.parseLong(names[i].substring(prefix.length()));
+                    numVersions++;
+                } catch (NumberFormatException e) {
+                    // not a version, e.g. a temporary file or a delta
+                }
+            }
+        }
+        versions= Arrays.copyOf(versions, numVersions);
+        Arrays.sort(versions);
+        return versions;
+    }
+
+    private static File getVersionFile(File file, long version) {
+        return new File(file.getPath() + "." + version);
+    }
+
+    /**
+     * @return the file whose versions are the deltas of the given version of an index
+     */
+    private static File getDeltaFile(File versionFile) {
+        return new File(versionFile.getPath() + ".delta");
+    }
+
+    /**
+     * Deletes the given version of an index, along with its deltas, as far as possible.
+     */
+    private static void deleteVersion(File versionFile) {
+        File deltaFile= getDeltaFile(versionFile);
+
+        for(long deltaVersion: getVersions(deltaFile)) {
+            deleteIfPossible(getVersionFile(deltaFile, deltaVersion));
+        }
+        deleteIfPossible(versionFile);
+    }
+
+    /**
+     * Deletes the given file, unless it can't be deleted yet because it's still mapped into
+     * memory by some reader.
+     */
+    private static void deleteIfPossible(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            // still in use; a later write will try again
+        }
+    }
+
+    private static String nonNull(String s) {
+        return (s != null) ? s : "";
+    }
+
+    /**
+     * @return the number of entries in this index, including the entries that a delta
+     * supersedes
+     */
+    public int size() {
+        return fNumEntries + ((fDelta != null) ? fDelta.fNumEntries : 0);
+    }
+
+    /**
+     * Materializes the entry with the given number (between 0 and <code>size()</code>),
+     * using the given contributor to create an entry of the right kind.
+     * @return the entry, or null if the contributor doesn't know its kind, or if the entry
+     * was superseded by a later update of its file
+     */
+    public IndexEntry getEntry(int entryNum, IndexContributorBase contributor) {
+        if (entryNum < 0 || entryNum >= size()) {
+            throw new IndexOutOfBoundsException("No entry " + entryNum + " in an index of " + size() + " entries");
+        }
+        if (fDelta == null) {
+            return getOwnEntry(entryNum, contributor);
+        }
+        if (entryNum < fDelta.fNumEntries) {
+            return fDelta.getOwnEntry(entryNum, contributor);
+        }
+        entryNum-= fDelta.fNumEntries;
+        return fDelta.supersedes(getString(getPathID(entryNum))) ? null : getOwnEntry(entryNum, contributor);
+    }
+
+    private IndexEntry getOwnEntry(int entryNum, IndexContributorBase contributor) {
+        int offset= fEntriesOffset + entryNum * ENTRY_SIZE;
+        IndexEntry entry= contributor.createEntry((char) fBuffer.getInt(offset));
+
+        if (entry != null) {
+            entry.fType= fBuffer.getInt(offset + 4);
+            entry.fName= getString(fBuffer.getInt(offset + 8));
+            entry.fPath= getString(fBuffer.getInt(offset + 12));
+            entry.fStart= fBuffer.getInt(offset + 16);
+            entry.fEnd= fBuffer.getInt(offset + 20);
+            entry.setExtraData(fBuffer.getInt(offset + 24));
+        }
+        return entry;
+    }
+
+    /**
+     * @return all entries with the given name
+     */
+    public List<IndexEntry> findByName(String name, IndexContributorBase contributor) {
+        List<IndexEntry> result= new ArrayList<IndexEntry>();
+        int nameID= findString(name);
+
+        if (nameID >= 0) {
+            for(int i= firstEntryWithName(nameID); i < fNumEntries && getNameID(i) == nameID; i++) {
+                if (fDelta == null || !fDelta.supersedes(getString(getPathID(i)))) {
+                    addEntry(result, i, contributor);
+                }
+            }
+        }
+        if (fDelta != null) {
+            result.addAll(fDelta.findByName(name, contributor));
+        }
+        return result;
+    }
+
+    /**
+     * @param path a workspace-relative path, as produced by <code>IPath.toString()</code>
+     * @return all entries for the file with the given path
+     */
+    public List<IndexEntry> findByPath(String path, IndexContributorBase contributor) {
+        if (fDelta != null && fDelta.supersedes(path)) {
+            return fDelta.findByPath(path, contributor);
+        }
+        List<IndexEntry> result= new ArrayList<IndexEntry>();
+        int pathID= findString(path);
+
+        if (pathID >= 0) {
+            for(int i= firstEntryWithPath(pathID); i < fNumEntries && getPathID(getEntryNumByPath(i)) == pathID; i++) {
+                addEntry(result, getEntryNumByPath(i), contributor);
+            }
+        }
+        return result;
+    }
+
+    private void addEntry(List<IndexEntry> result, int entryNum, IndexContributorBase contributor) {
+        IndexEntry entry= getOwnEntry(entryNum, contributor);
+
+        if (entry != null) {
+            result.add(entry);
+        }
+    }
+
+    /**
+     * @return true if this (delta) index replaces the entries for the given path
+     */
+    private boolean supersedes(String path) {
+        int pathID= findString(path);
+        int lo= 0, hi= fNumSuperseded - 1;
+
+        while (pathID >= 0 && lo <= hi) {
+            int mid= (lo + hi) >>> 1;
+            int midID= fBuffer.getInt(fSupersededOffset + 4 * mid);
+
+            if (midID < pathID) {
+                lo= mid + 1;
+            } else if (midID > pathID) {
+                hi= mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int getNameID(int entryNum) {
+        return fBuffer.getInt(fEntriesOffset + entryNum * ENTRY_SIZE + 8);
+    }
+
+    private int getPathID(int entryNum) {
+        return fBuffer.getInt(fEntriesOffset + entryNum * ENTRY_SIZE + 12);
+    }
+
+    private int getEntryNumByPath(int i) {
+        return fBuffer.getInt(fByPathOffset + 4 * i);
+    }
+
+    private int firstEntryWithName(int nameID) {
+        int lo= 0, hi= fNumEntries;
+
+        while (lo < hi) {
+            int mid= (lo + hi) >>> 1;
+
+            if (getNameID(mid) < nameID) {
+                lo= mid + 1;
+            } else {
+                hi= mid;
+            }
+        }
+        return lo;
+    }
+
+    private int firstEntryWithPath(int pathID) {
+        int lo= 0, hi= fNumEntries;
+
+        while (lo < hi) {
+            int mid= (lo + hi) >>> 1;
+
+            if (getPathID(getEntryNumByPath(mid)) < pathID) {
+                lo= mid + 1;
+            } else {
+                hi= mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the ID of the given string, or -1 if it doesn't occur in this index
+     */
+    private int findString(String s) {
+        int lo= 0, hi= fNumStrings - 1;
+
+        while (lo <= hi) {
+            int mid= (lo + hi) >>> 1;
+            int cmp= getString(mid).compareTo(s);
+
+            if (cmp < 0) {
+                lo= mid + 1;
+            } else if (cmp > 0) {
+                hi= mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private String getString(int stringID) {
+        int start= fBuffer.getInt(HEADER_SIZE + 4 * stringID);
+        int end= fBuffer.getInt(HEADER_SIZE + 4 * (stringID + 1));
+        byte[] bytes= new byte[end - start];
+
+        for(int i= 0; i < bytes.length; i++) {
+            bytes[i]= fBuffer.get(fStringsOffset + start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -12,13 +12,14 @@
 
 package io.usethesource.impulse.indexing;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 import org.eclipse.core.resources.IFile;
@@ -57,9 +58,9 @@ public class Indexer {
     private IParseController fParser;
 
     /**
-     * The set of index entries for the current project being indexed
+     * The index entries for the current project being indexed, per workspace-relative file path
      */
-    private Set<IndexEntry> fProjectEntries= new HashSet<>();
+    private Map<String, Set<IndexEntry>> fFileEntries= new HashMap<>();
 
     /**
      * Creates an index for the shared elements in this language
@@ -82,37 +83,109 @@ public class Indexer {
     }
 
     /**
-     * Opens the index file for reading. The index file is stored in the plug-in's state location. If this is the first
-     * time the index is opened, it will be created. The inputstream has to be closed after usage.
-     * 
-     * @return an inputstream containing the index file
+     * Reads all entries of the persistent index of the given project into this Indexer.
+     * To search large indexes without loading all of their entries, use
+     * {@link #openIndex(IProject)} instead.
      */
     public void load(IProject project) {
-        try {
-            File file= getPersistentIndexFile(project);
+        IndexFile index= openIndex(project);
 
-            readEntries(new BufferedReader(new FileReader(file)));
-        } catch (IOException e) {
-            ErrorHandler.reportError("Cannot open persistent index for " + fLanguage);
+        if (index != null) {
+            for(int i= 0; i < index.size(); i++) {
+                IndexEntry entry= index.getEntry(i, fIndexer);
+
+                if (entry != null) {
+                    addEntry(entry);
+                }
+            }
         }
     }
 
-    private void readEntries(BufferedReader reader) throws IOException {
-        String line;
+    /**
+     * Maps the persistent index of the given project into memory, for lookups by name or
+     * path. The index file is stored in the plug-in's state location. An index that was
+     * written in an unknown format, e.g. by an older release, is rebuilt first.
+     * @return the index, which is empty if the project hasn't been indexed yet, or null
+     * if the index can't be read
+     */
+    public IndexFile openIndex(IProject project) {
+        File file= getPersistentIndexFile(project);
 
-        while ((line= reader.readLine()) != null) {
-            IndexEntry entry= fIndexer.parseEntry(line);
+        try {
+            IndexFile index= IndexFile.open(file);
 
-            addEntry(entry);
+            if (index == null) {
+                rebuildIndex(project);
+                index= IndexFile.open(file);
+            }
+            return index;
+        } catch (IOException e) {
+            ErrorHandler.reportError("Cannot open persistent index for " + fLanguage.getName() + " and project " + project.getName(), e);
+            return null;
         }
     }
 
     public void clearEntries() {
-        fProjectEntries.clear();
+        fFileEntries.clear();
+    }
+
+    /**
+     * Drops the entries contributed for the given file, e.g. because it was deleted.
+     */
+    public void clearEntries(IFile file) {
+        fFileEntries.remove(file.getFullPath().toString());
     }
 
     public void addEntry(IndexEntry entry) {
-        fProjectEntries.add(entry);
+        Set<IndexEntry> entries= fFileEntries.get(entry.getPath());
+
+        if (entries == null) {
+            fFileEntries.put(entry.getPath(), entries= new HashSet<>());
+        }
+        entries.add(entry);
+    }
+
+    /**
+     * @return all entries of the current project being indexed
+     */
+    public Collection<IndexEntry> getEntries() {
+        Collection<IndexEntry> result= new ArrayList<>();
+
+        for(Set<IndexEntry> entries: fFileEntries.values()) {
+            result.addAll(entries);
+        }
+        return result;
+    }
+
+    /**
+     * (Re-)indexes the given file, replacing any entries previously contributed for it.
+     * The file is assumed to have one of the language's extensions.
+     */
+    public void indexFile(IFile file, IProgressMonitor monitor) throws CoreException {
+        LanguageValidator validator= fLanguage.getValidator();
+
+        clearEntries(file);
+        if (fParser == null || !file.exists()) {
+            return;
+        }
+        if (validator == null || validator.validate(file)) {
+            String contents= StreamUtils.readStreamContents(file.getContents(), file.getCharset());
+            Object ast= fParser.parse(contents, monitor);
+
+            if (ast != null)
+                fIndexer.contributeEntries(ast, this);
+            else
+                RuntimePlugin.getInstance().writeErrorMsg("Unable to parse file " + file.getFullPath() + "; indexing suppressed.");
+        }
+    }
+
+    /**
+     * @return true if the given file is a source file of the language being indexed
+     */
+    public boolean isIndexedFile(IFile file) {
+        String ext= file.getFileExtension();
+
+        return ext != null && fLanguage.hasExtension(ext);
     }
 
     public void createAllIndexes() {
@@ -131,7 +204,6 @@ public class Indexer {
     }
 
     public void createProjectIndex(IProject project) {
-        final LanguageValidator validator= fLanguage.getValidator();
         final IProgressMonitor monitor= new NullProgressMonitor();
 
         try {
@@ -141,17 +213,7 @@ public class Indexer {
                         String name= proxy.getName();
 
                         if (fLanguage.hasExtension(name.substring(name.lastIndexOf('.') + 1))) {
-                            IFile file= (IFile) proxy.requestResource();
-
-                            if (validator == null || validator.validate(file)) {
-                        	String contents= StreamUtils.readStreamContents(file.getContents(), file.getCharset());
-                                Object ast= fParser.parse(contents, monitor);
-
-                                if (ast != null)
-                                    fIndexer.contributeEntries(ast, Indexer.this);
-                                else
-                                    RuntimePlugin.getInstance().writeErrorMsg("Unable to parse file " + file.getFullPath() + "; indexing suppressed.");
-                            }
+                            indexFile((IFile) proxy.requestResource(), monitor);
                         }
                     }
                     return false;
@@ -163,44 +225,65 @@ public class Indexer {
     }
 
     /**
-     * Open the index file for saving. The output stream should be closed after usage.
-     * 
-     * @return an outputStream the user can write to.
+     * Writes the entries of the project being indexed to the persistent index of the
+     * given project.
      */
     public void save(IProject project) {
         try {
-            File file= getPersistentIndexFile(project);
-            FileWriter writer= new FileWriter(file);
+            IndexFile.write(getPersistentIndexFile(project), getEntries());
+        } catch (IOException e) {
+            ErrorHandler.reportError("Cannot write persistent index for " + fLanguage.getName() + " and project " + project.getName(), e);
+        }
+    }
 
-            for(Iterator<IndexEntry> iter= fProjectEntries.iterator(); iter.hasNext(); ) {
-                IndexEntry entry = iter.next();
-                entry.saveToStream(writer);
+    /**
+     * Replaces the entries for the given workspace-relative paths in the persistent index
+     * of the given project by the ones this Indexer holds for them, without rewriting the
+     * rest of the index. Paths for which this Indexer holds no entries are removed from
+     * the index. An index that can't be updated, because the project was never indexed in
+     * full, or because it was written by an older release, is built from scratch instead.
+     */
+    public void saveChanges(IProject project, Collection<String> paths) {
+        Map<String, Collection<IndexEntry>> entriesByPath= new HashMap<>();
+
+        for(String path: paths) {
+            Set<IndexEntry> entries= fFileEntries.get(path);
+
+            entriesByPath.put(path, (entries != null) ? entries : Collections.<IndexEntry>emptySet());
+        }
+        try {
+            if (!IndexFile.update(getPersistentIndexFile(project), entriesByPath, fIndexer)) {
+                rebuildIndex(project);
             }
         } catch (IOException e) {
-            ErrorHandler.reportError("Cannot open persistent index for " + fLanguage + " and project " + project.getName(), e);
+            ErrorHandler.reportError("Cannot update persistent index for " + fLanguage.getName() + " and project " + project.getName(), e);
         }
     }
 
     /**
-     * Returns the index file. The index file is stored in the plug-in's state location. If this is the first time the
-     * index is opened, it will be created.
-     * @param project the project whose index file should be loaded
-     * 
+     * Indexes all files of the given project, and writes the result as its persistent index.
+     */
+    private void rebuildIndex(IProject project) {
+        // Use a separate Indexer, so as not to disturb the entries this one holds
+        Indexer reindexer= new Indexer(fLanguage.getName());
+
+        reindexer.createProjectIndex(project);
+        reindexer.save(project);
+    }
+
+    /**
+     * Returns the index file, which is stored in the plug-in's state location. The file
+     * need not exist yet, but its parent directory is created if necessary.
+     * @param project the project whose index file should be returned
      * @return the file where the persistent index is stored
-     * @return null when the file cannot be created
      */
     private File getPersistentIndexFile(IProject project) {
-        try {
-            IPath path= RuntimePlugin.getInstance().getStateLocation().append(project.getName());
-            File file= new File(path.toFile(), fLanguage + ".index");
+        IPath path= RuntimePlugin.getInstance().getStateLocation().append(project.getName());
+        File dir= path.toFile();
 
-            if (!file.exists()) {
-                file.createNewFile();
-            }
-            return file;
-        } catch (IOException e) {
-            ErrorHandler.reportError("Cannot locate index file for " + fLanguage + " and project " + project.getName(), e);
-            return null;
+        if (!dir.exists()) {
+            dir.mkdirs();
         }
+        return new File(dir, fLanguage.getName() + ".index");
     }
 }
@@ -0,0 +1,48 @@
+package io.usethesource.impulse.language;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+
+/**
+ * Reads the leading characters of a document, a chunk at a time, without copying the
+ * rest of the document.
+ */
+class DocumentPrefixReader extends Reader {
+    private final IDocument fDocument;
+
+    private final int fEnd;
+
+    private int fOffset;
+
+    /**
+     * @param limit the number of characters to read at most, or -1 to read the whole
+     * document
+     */
+    public DocumentPrefixReader(IDocument document, int limit) {
+        fDocument= document;
+        fEnd= (limit < 0) ? document.getLength() : Math.min(limit, document.getLength());
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) throws IOException {
+        if (fOffset >= fEnd) {
+            return -1;
+        }
+        int count= Math.min(length, fEnd - fOffset);
+
+        try {
+            fDocument.get(fOffset, count).getChars(0, count, buffer, offset);
+        } catch (BadLocationException e) {
+            // The document shrank while being read
+            throw new IOException(e);
+        }
+        fOffset+= count;
+        return count;
+    }
+
+    @Override
+    public void close() { }
+}
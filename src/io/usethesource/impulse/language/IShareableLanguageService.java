@@ -0,0 +1,14 @@
+package io.usethesource.impulse.language;
+
+/**
+ * A marker for language services that keep no state of their own, such as most token
+ * colorers and hover helpers. The {@link ServiceFactory} creates a single instance of such
+ * a service per language, and hands it out to every editor (and to other clients, like
+ * indexers) for as long as an editor on that language is open.<br>
+ * Implementations must therefore be safe to use from several threads at once, and must
+ * not rely on setters being called by only one client (e.g. setLanguage() is fine, but
+ * setEditor() is not).<br>
+ * Services that their clients dispose, like label providers, are never shared, even if
+ * they implement this interface, since one client would dispose them for all others.
+ */
+public interface IShareableLanguageService extends ILanguageService { }
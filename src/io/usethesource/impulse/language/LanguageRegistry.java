@@ -20,14 +20,17 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.function.Supplier;
 
 import org.eclipse.core.internal.registry.ExtensionRegistry;
 import org.eclipse.core.runtime.*;
 import org.eclipse.jface.resource.ImageDescriptor;
 import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.SWTException;
 import org.eclipse.swt.graphics.ImageData;
@@ -51,9 +54,11 @@ import org.osgi.framework.Bundle;
 import io.usethesource.impulse.core.ErrorHandler;
 import io.usethesource.impulse.editor.EditorInputUtils;
 import io.usethesource.impulse.editor.UniversalEditor;
+import io.usethesource.impulse.indexing.IncrementalIndexer;
 import io.usethesource.impulse.preferences.PreferenceCache;
 import io.usethesource.impulse.runtime.RuntimePlugin;
 import io.usethesource.impulse.services.IQuickFixAssistant;
+import io.usethesource.impulse.utils.ExtensionIndex;
 
 /**
  * @author Claffra
@@ -65,10 +70,42 @@ import io.usethesource.impulse.services.IQuickFixAssistant;
  */
 @SuppressWarnings("restriction")
 public class LanguageRegistry {
-	private static Object sStatusCheckMutex = new Object();
-	private static boolean sIsFullyInitialized = false;
-	
-	private static Map<String, Language> sRegister;
+	private static final Object sStatusCheckMutex = new Object();
+	private static volatile boolean sIsFullyInitialized = false;
+
+	/**
+	 * True while initializeRegistryAsNeeded() runs; guarded by sStatusCheckMutex
+	 */
+	private static boolean sIsInitializing = false;
+
+	/**
+	 * The registered languages. Readers just take the current snapshot; writers build a
+	 * new one while holding sWriteMutex, and then swap it in.
+	 */
+	private static volatile Snapshot sSnapshot = Snapshot.EMPTY;
+
+	private static final Object sWriteMutex = new Object();
+
+	/**
+	 * The languages detected by findLanguage(IPath, IDocument), by document (weakly, so
+	 * that closed documents are dropped); guards itself. An entry only applies to the path,
+	 * the modification stamp and the set of registered languages it was detected for.
+	 */
+	private static final Map<IDocument, DetectedLanguage> sDetectionCache = new WeakHashMap<IDocument, DetectedLanguage>();
+
+	private static final class DetectedLanguage {
+		final IPath path;
+		final long stamp;
+		final Snapshot snapshot;
+		final Language language;
+
+		DetectedLanguage(IPath path, long stamp, Snapshot snapshot, Language language) {
+			this.path = path;
+			this.stamp = stamp;
+			this.snapshot = snapshot;
+			this.language = language;
+		}
+	}
 
 	private static IEditorDescriptor sUniversalEditor;
 
@@ -80,11 +117,56 @@ public class LanguageRegistry {
 	 */
 	private LanguageRegistry() {}
 	
-	private static Map<String, Language> getRegister() {
-		if(sRegister == null) {
-			sRegister = new HashMap<String, Language>();
+	/**
+	 * An immutable set of registered languages, indexed by name and by file name extension.
+	 */
+	private static final class Snapshot {
+		static final Snapshot EMPTY = new Snapshot(new LinkedHashMap<String, Language>());
+
+		/**
+		 * The languages by lower-case name, in order of registration
+		 */
+		final Map<String, Language> languages;
+
+		/**
+		 * The languages by file name extension, in order of registration
+		 */
+		final Map<String, List<Language>> languagesByExtension;
+
+		private Snapshot(LinkedHashMap<String, Language> languages) {
+			Map<String, List<Language>> byExtension = new HashMap<String, List<Language>>();
+
+			for (Language language : languages.values()) {
+				for (String extension : language.getFilenameExtensions()) {
+					List<Language> extensionLanguages = byExtension.get(extension);
+
+					if (extensionLanguages == null) {
+						extensionLanguages = new ArrayList<Language>(1);
+						byExtension.put(extension, extensionLanguages);
+					}
+					extensionLanguages.add(language);
+				}
+			}
+			for (Map.Entry<String, List<Language>> entry : byExtension.entrySet()) {
+				entry.setValue(Collections.unmodifiableList(entry.getValue()));
+			}
+			this.languages = Collections.unmodifiableMap(languages);
+			this.languagesByExtension = byExtension;
+		}
+
+		Snapshot with(Language language) {
+			LinkedHashMap<String, Language> newLanguages = new LinkedHashMap<String, Language>(languages);
+
+			newLanguages.put(language.getName().toLowerCase(), language);
+			return new Snapshot(newLanguages);
+		}
+
+		Snapshot without(Language language) {
+			LinkedHashMap<String, Language> newLanguages = new LinkedHashMap<String, Language>(languages);
+
+			newLanguages.remove(language.getName().toLowerCase());
+			return new Snapshot(newLanguages);
 		}
-		return sRegister;
 	}
 
 	/**
@@ -147,6 +229,11 @@ public class LanguageRegistry {
 
 	/**
 	 * Determine the source language contained by the resource at the given path.
+	 * The candidates are the languages registered for the path's file name extension;
+	 * if there are validators among them, the document is used to choose between them.
+	 * Only as much of the document is read as the validators ask for, and the outcome is
+	 * cached for the document, as long as neither its path, its modification stamp nor the
+	 * registered languages change.
 	 * 
 	 * @param path
 	 * @param doc if non-null, may be used to validate the contents of the document
@@ -158,24 +245,35 @@ public class LanguageRegistry {
 		if (!isFullyInitialized())
 			initializeRegistryAsNeeded();
 		String extension= path.getFileExtension();
-		String docContents= (doc != null) ? doc.get() : null;
+		long stamp= (doc instanceof IDocumentExtension4) ? ((IDocumentExtension4) doc).getModificationStamp() : IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+		// Detect against a single snapshot, so that a language (de)registered meanwhile
+		// makes the result stale, rather than mixing the old and new set of languages
+		Snapshot snapshot= sSnapshot;
+
+		if (doc != null && stamp != IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP) {
+			synchronized (sDetectionCache) {
+				DetectedLanguage detected= sDetectionCache.get(doc);
+
+				if (detected != null && detected.snapshot == snapshot && detected.stamp == stamp && detected.path.equals(path)) {
+					return detected.language;
+				}
+			}
+		}
 
 		// N.B. It's ok for multiple language descriptors to specify the same
 		// file name extension; the associated validators should use the file
 		// contents to identify the dialects.
-		if (extension != null) {
-		    for (Language lang : getRegister().values()) {
-		        if (lang.hasExtension(extension)) {
-		            LanguageValidator validator = lang.getValidator();
-
-		            if (validator != null && docContents != null) {
-		                if (validator.validate(docContents)) {
-		                    return lang;
-		                }
-		            } else {
-		                return lang;
-		            }
+		List<Language> candidates= (extension != null) ? getLanguagesForExtension(snapshot, extension) : Collections.<Language>emptyList();
+
+		for (Language lang : candidates) {
+		    LanguageValidator validator = lang.getValidator();
+
+		    if (validator != null && doc != null) {
+		        if (validate(validator, doc)) {
+		            return cacheDetectedLanguage(path, doc, stamp, snapshot, lang);
 		        }
+		    } else {
+		        return cacheDetectedLanguage(path, doc, stamp, snapshot, lang);
 		    }
 		}
 
@@ -190,10 +288,41 @@ public class LanguageRegistry {
 		return null;
 	}
 
+	private static boolean validate(LanguageValidator validator, IDocument doc) {
+		int prefixLength= validator.getPrefixLength();
+
+		if (prefixLength < 0) {
+			// Reading the whole document through a Reader would only copy it more often
+			return validator.validate(doc.get());
+		}
+		try {
+			return validator.validate(new DocumentPrefixReader(doc, prefixLength));
+		} catch (IOException e) {
+			// The document changed while being read; the next lookup will try again
+			return false;
+		}
+	}
+
+	private static Language cacheDetectedLanguage(IPath path, IDocument doc, long stamp, Snapshot snapshot, Language lang) {
+		if (doc != null && stamp != IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP) {
+			synchronized (sDetectionCache) {
+				// If the languages changed in the meantime, this entry will never match
+				sDetectionCache.put(doc, new DetectedLanguage(path, stamp, snapshot, lang));
+			}
+		}
+		return lang;
+	}
+
+	private static List<Language> getLanguagesForExtension(Snapshot snapshot, String extension) {
+		List<Language> languages = snapshot.languagesByExtension.get(extension);
+
+		return (languages != null) ? languages : Collections.<Language>emptyList();
+	}
+
 	public static Language findLanguageByNature(String natureID) {
 		if (!isFullyInitialized())
 			initializeRegistryAsNeeded();
-		for (Language lang : getRegister().values()) {
+		for (Language lang : sSnapshot.languages.values()) {
 			String aNatureID = lang.getNatureID();
 
 			if (aNatureID != null && aNatureID.equals(natureID)) {
@@ -206,13 +335,13 @@ public class LanguageRegistry {
  	public static Collection<Language> getLanguages() {
 		if (!isFullyInitialized())
 			initializeRegistryAsNeeded();
- 		return Collections.unmodifiableCollection(getRegister().values());
+ 		return sSnapshot.languages.values();
  	}
  		 
  	public static Language findLanguage(String languageName) {
 		if (!isFullyInitialized())
 			initializeRegistryAsNeeded();
- 		return getRegister().get(languageName.toLowerCase());
+ 		return sSnapshot.languages.get(languageName.toLowerCase());
  	}
 	
 	
@@ -230,6 +359,7 @@ public class LanguageRegistry {
             initializeRegistryAsNeeded();
         register(language);
         updateEditorMappings(language);
+        IncrementalIndexer.installFor(language);
     }
 
     private static void updateEditorMappings(Language language) {
@@ -251,6 +381,7 @@ public class LanguageRegistry {
         ps.println("Dynamically deregistering language " + language.getName());
 		if (!isFullyInitialized())
 			initializeRegistryAsNeeded();
+		IncrementalIndexer.uninstallFor(language);
 		deregister(language);
 		updateEditorMappings(language);
 	}
@@ -276,37 +407,49 @@ public class LanguageRegistry {
 	 * isFullyInitialized within this block, as a means to assure that the registry
 	 * will be initialized serially and only once.  Although isFullyInitialized
 	 * can be tested from anywhere, this is the only place that it should be set.
+	 * It is only set once initialization is complete, so that other threads wait
+	 * for all languages to be registered; the language registrars, which are run
+	 * as part of initialization, see sIsInitializing instead.
 	 */
 	private static void initializeRegistryAsNeeded() {	
 		synchronized(sStatusCheckMutex) {
-			if(isFullyInitialized()) {
+			if(isFullyInitialized() || sIsInitializing) {
 				return;
 			}
-			preInitEditorRegistry();
-			
-
-			if (PreferenceCache.emitMessages) {
-				RuntimePlugin.getInstance().writeInfoMsg(
-						"Looking for IMP language description extensions...");
+			sIsInitializing = true;
+			try {
+				initializeRegistry();
+				setFullyInitialized();
+			} finally {
+				sIsInitializing = false;
 			}
+		}
+	}
+
+	private static void initializeRegistry() {
+		preInitEditorRegistry();
+		
 
-			List<IFileEditorMapping> newMap = new ArrayList<IFileEditorMapping>();
+		if (PreferenceCache.emitMessages) {
+			RuntimePlugin.getInstance().writeInfoMsg(
+					"Looking for IMP language description extensions...");
+		}
 
-            addNonUniversalEditorMappings(newMap);
-			for(Language lang : getRegister().values()) {
+		List<IFileEditorMapping> newMap = new ArrayList<IFileEditorMapping>();
+
+        addNonUniversalEditorMappings(newMap);
+		for(Language lang : sSnapshot.languages.values()) {
 	            addUniversalEditorMappings(lang.getName(), lang.getIconPath(), lang.getFilenameExtensions(), lang.getBundleID(), newMap);
-            }
-			
-			updateEditorRegistry(() -> newMap); // in this case, no need for lazily computing the map
-			setFullyInitialized();
-			runLanguageRegistrars();
-			
-
-			// The following calls dynamically establish additional extensions for each
-			// qualifying language in the registry, so the user doesn't have to write
-			// extensions in their plugin's plugin.xml.
-			updateMarkerResolutionRegistry();
-		}
+        }
+		
+		updateEditorRegistry(() -> newMap); // in this case, no need for lazily computing the map
+		runLanguageRegistrars();
+		
+
+		// The following calls dynamically establish additional extensions for each
+		// qualifying language in the registry, so the user doesn't have to write
+		// extensions in their plugin's plugin.xml.
+		updateMarkerResolutionRegistry();
 	}
 
 	private static void runLanguageRegistrars() {
@@ -335,6 +478,16 @@ public class LanguageRegistry {
 
 	    IExtensionRegistry extRegistry= Platform.getExtensionRegistry();
 
+	    // Index the service extensions by language up front, so that opening an editor
+	    // doesn't scan every extension point; the index drops whatever the registry changes
+	    extRegistry.addListener(ExtensionIndex.getInstance());
+	    ExtensionIndex.getInstance().index(ServiceFactory.ALL_SERVICES);
+
+	    // Keep the persistent indexes up to date as files change
+	    for(Language language: getLanguages()) {
+	        IncrementalIndexer.installFor(language);
+	    }
+
 	    extRegistry.addListener(new IRegistryEventListener() {
 	        // TODO handle removal of a language description
 	        public void removed(IExtensionPoint[] extensionPoints) { }
@@ -613,9 +766,10 @@ public class LanguageRegistry {
 
 	@SuppressWarnings("unused")
     private static List<String> collectAllLanguageFileNameExtensions() {
-		List<String> allExtens = new ArrayList<String>(getRegister().size());
+		Collection<Language> languages = sSnapshot.languages.values();
+		List<String> allExtens = new ArrayList<String>(languages.size());
 
-		for (Language lang : getRegister().values()) {
+		for (Language lang : languages) {
 			allExtens.addAll(lang.getFilenameExtensions());
 		}
 
@@ -651,7 +805,10 @@ public class LanguageRegistry {
 	}
 
     private static void deregister(Language language) {
-        getRegister().remove(language.getName().toLowerCase());
+        synchronized (sWriteMutex) {
+            sSnapshot = sSnapshot.without(language);
+        }
+        clearDetectionCache();
         
         if (PreferenceCache.emitMessages) {
             RuntimePlugin.getInstance().writeInfoMsg("Deregistered language description: " + language.getName());
@@ -659,13 +816,22 @@ public class LanguageRegistry {
     }
 
     private static void register(Language language) {
-		getRegister().put(language.getName().toLowerCase(), language);
+		synchronized (sWriteMutex) {
+			sSnapshot = sSnapshot.with(language);
+		}
+		clearDetectionCache();
 		
 		if (PreferenceCache.emitMessages) {
 			RuntimePlugin.getInstance().writeInfoMsg("Registered language description: " + language.getName());
 		}
 	}
 
+	private static void clearDetectionCache() {
+		synchronized (sDetectionCache) {
+			sDetectionCache.clear();
+		}
+	}
+
 	private static void setFullyInitialized() {
 	    sIsFullyInitialized = true;
 	}
@@ -14,6 +14,7 @@ package io.usethesource.impulse.language;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.Reader;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
@@ -53,6 +54,39 @@ public abstract class LanguageValidator {
      */
     public abstract boolean validate(String buffer);
 
+    /**
+     * Returns the number of leading characters of a text buffer that {@link #validate(Reader)}
+     * needs to see. Validators that can tell their language from a bounded prefix (e.g. a
+     * header, or a magic comment) should override this method as well as validate(Reader),
+     * so that large documents needn't be copied into a String to be validated. Open documents
+     * of validators that need the whole buffer are passed to {@link #validate(String)}.
+     * 
+     * @return the number of characters, or -1 if the whole buffer is needed
+     */
+    public int getPrefixLength() {
+        return -1;
+    }
+
+    /**
+     * Validate a text buffer, given as a stream of characters, whether it implements the
+     * programming language defined in this extension point contribution. The stream ends
+     * after {@link #getPrefixLength()} characters, if that is non-negative.<br>
+     * The default implementation reads the entire stream, and passes it on to
+     * {@link #validate(String)}.
+     * 
+     * @param reader the contents to be verified
+     * @return whether the text actually matches this programming language 
+     */
+    public boolean validate(Reader reader) throws IOException {
+        StringBuilder buffer= new StringBuilder();
+        char[] chars= new char[4096];
+
+        for(int n= reader.read(chars); n >= 0; n= reader.read(chars)) {
+            buffer.append(chars, 0, n);
+        }
+        return validate(buffer.toString());
+    }
+
     /**
      * See if this file contains a given search string. Warning: may cause
      * excessive reading if files are large.
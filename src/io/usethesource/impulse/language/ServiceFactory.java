@@ -18,6 +18,8 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
+import org.eclipse.jface.viewers.IBaseLabelProvider;
+
 import io.usethesource.impulse.editor.OutlineContentProviderBase;
 import io.usethesource.impulse.editor.OutlineLabelProvider.IElementImageProvider;
 import io.usethesource.impulse.indexing.IndexContributorBase;
@@ -75,7 +77,13 @@ import io.usethesource.impulse.utils.ExtensionFactory;
  * @author jurgenv
  */
 public class ServiceFactory {
-    private static ServiceFactory sInstance;
+    private static volatile ServiceFactory sInstance;
+
+    /**
+     * The instances of shareable services, which are the same for every ServiceFactory
+     * (including every CachingServiceFactory)
+     */
+    private static final SharedServicePool sSharedServices= new SharedServicePool();
 
     /**
      * The unqualified extension point ID for IMP language descriptors.
@@ -190,10 +198,17 @@ public class ServiceFactory {
      * @return
      */
     public static ServiceFactory getInstance() {
-        if (sInstance == null) {
-            sInstance = new ServiceFactory();
+        ServiceFactory instance= sInstance;
+
+        if (instance == null) {
+            synchronized (ServiceFactory.class) {
+                instance= sInstance;
+                if (instance == null) {
+                    sInstance= instance= new ServiceFactory();
+                }
+            }
         }
-        return sInstance;
+        return instance;
     }
     
     public static ServiceFactory otherGetInstance() {
@@ -409,6 +424,14 @@ public class ServiceFactory {
         return null;
     }
 
+    /**
+     * @return true if some plug-in contributes an index contributor for the given
+     * language, without instantiating it
+     */
+    public boolean hasIndexContributor(Language lang) {
+        return ExtensionFactory.languageServiceExists(RuntimePlugin.IMP_RUNTIME, INDEX_CONTRIBUTOR_SERVICE, lang);
+    }
+
     public IndexContributorBase getIndexContributor(Language lang) {
         try {
             return (IndexContributorBase) loadService(lang,
@@ -706,6 +729,24 @@ public class ServiceFactory {
         return createExtensions(lang, serviceId);
     }
 
+    /**
+     * Keeps the shared instances of the {@link IShareableLanguageService}s of the given
+     * language alive until a matching call to {@link #releaseSharedServices(Language)}.
+     * Editors call this when they are opened, so that all editors on a language get the
+     * same instances.
+     */
+    public void retainSharedServices(Language lang) {
+        sSharedServices.retain(lang);
+    }
+
+    /**
+     * Undoes a call to {@link #retainSharedServices(Language)}. Once no client retains
+     * the language's services anymore, its shared instances are dropped.
+     */
+    public void releaseSharedServices(Language lang) {
+        sSharedServices.release(lang);
+    }
+
     private ILanguageService loadService(Language lang, String name) {
         if (lang == null) {
             RuntimePlugin.getInstance().logException("Null language for service = " + name, new NullPointerException());
@@ -715,6 +756,17 @@ public class ServiceFactory {
             RuntimePlugin.getInstance().logException("Null service for language = " + lang, new NullPointerException());
             return null;
         }
-        return createExtension(lang, name);
+        ILanguageService service= sSharedServices.get(lang, name);
+
+        if (service != null) {
+            return service;
+        }
+        service= createExtension(lang, name);
+
+        // Clients dispose label providers when they're done with them
+        if (service instanceof IShareableLanguageService && !(service instanceof IBaseLabelProvider)) {
+            return sSharedServices.share(lang, name, service);
+        }
+        return service;
     }
 }
@@ -0,0 +1,93 @@
+package io.usethesource.impulse.language;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The instances of {@link IShareableLanguageService}s that are shared among the clients
+ * of a language, by language and service ID.<br>
+ * Editors retain the services of their language while they are open; instances are only
+ * pooled while some editor retains their language, and once no editor does anymore, its
+ * shared instances are dropped, so that closing the last editor on a language releases
+ * them. Looking up a shared instance doesn't lock.
+ */
+class SharedServicePool {
+    /**
+     * The shared instances, by lower-case language name and service ID
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, ILanguageService>> fServices= new ConcurrentHashMap<String, ConcurrentMap<String, ILanguageService>>();
+
+    /**
+     * The number of clients that retain each language's services; guarded by itself, which
+     * also guards additions to and removals from fServices
+     */
+    private final Map<String, Integer> fReferences= new HashMap<String, Integer>();
+
+    /**
+     * @return the shared instance of the given service for the given language, or null
+     * if there is none (yet)
+     */
+    public ILanguageService get(Language language, String serviceID) {
+        Map<String, ILanguageService> services= fServices.get(getKey(language));
+
+        return (services != null) ? services.get(serviceID) : null;
+    }
+
+    /**
+     * Makes the given instance the shared instance of the given service for the given
+     * language, unless some other thread got there first, or no client retains the
+     * language's services, in which case nothing would ever drop the instance again.
+     * @return the shared instance, or the given one if it isn't pooled
+     */
+    public ILanguageService share(Language language, String serviceID, ILanguageService service) {
+        String key= getKey(language);
+
+        synchronized (fReferences) {
+            if (!fReferences.containsKey(key)) {
+                return service;
+            }
+            ConcurrentMap<String, ILanguageService> services= fServices.get(key);
+
+            if (services == null) {
+                fServices.put(key, services= new ConcurrentHashMap<String, ILanguageService>());
+            }
+            ILanguageService existing= services.putIfAbsent(serviceID, service);
+
+            return (existing != null) ? existing : service;
+        }
+    }
+
+    public void retain(Language language) {
+        String key= getKey(language);
+
+        synchronized (fReferences) {
+            Integer count= fReferences.get(key);
+
+            fReferences.put(key, (count != null) ? count + 1 : 1);
+        }
+    }
+
+    public void release(Language language) {
+        String key= getKey(language);
+
+        synchronized (fReferences) {
+            Integer count= fReferences.get(key);
+
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                fReferences.put(key, count - 1);
+            } else {
+                fReferences.remove(key);
+                fServices.remove(key);
+            }
+        }
+    }
+
+    private static String getKey(Language language) {
+        return language.getName().toLowerCase();
+    }
+}
@@ -0,0 +1,34 @@
+package io.usethesource.impulse.parser;
+
+import java.util.List;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
+
+/**
+ * Optional extension of {@link IParseController} for parsers that can reuse parts of a
+ * previously computed AST. When the parse controller of an editor implements this
+ * interface, the {@link io.usethesource.impulse.editor.ParserScheduler} hands it the
+ * document edits that happened since the last parse, instead of asking for a parse of
+ * the complete source text.
+ */
+public interface IIncrementalParseController extends IParseController {
+    /**
+     * Reparse the given document, taking into account the edits applied to it since the
+     * previous parse. The edits are listed in the order in which they were applied, and
+     * their offsets are relative to the state of the document at the time of each edit.
+     * <br>
+     * If the parse is cancelled through the given monitor, implementations should either
+     * leave {@link #getCurrentAst()} unchanged, in which case the same edits (followed by
+     * any newer ones) will be offered again on the next parse, or replace it with an AST
+     * that reflects all of the given edits. If the document changed while the parse was
+     * running, the next parse will be a parse of the complete document.
+     * @param document the {@link IDocument} comprising the source text to parse
+     * @param edits the non-empty list of edits applied since the previous parse
+     * @param previousAst the AST produced by the previous parse
+     * @param monitor
+     * @return the AST, if any, resulting from the parse
+     */
+    Object parse(IDocument document, List<DocumentEvent> edits, Object previousAst, IProgressMonitor monitor);
+}
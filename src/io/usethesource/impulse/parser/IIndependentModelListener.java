@@ -0,0 +1,11 @@
+package io.usethesource.impulse.parser;
+
+/**
+ * Marker interface for {@link IModelListener}s whose update does not depend on the effects
+ * of any other model listener, and which are safe to update from a thread other than the
+ * parser's. After each parse the {@link io.usethesource.impulse.editor.ParserScheduler}
+ * updates such listeners concurrently with each other and with the remaining listeners,
+ * and waits for all of them to finish before the next parse starts.
+ */
+public interface IIndependentModelListener extends IModelListener {
+}
@@ -18,6 +18,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IWorkspaceRoot;
@@ -36,6 +37,7 @@ import org.eclipse.core.runtime.preferences.InstanceScope;
 import org.osgi.framework.Bundle;
 import org.osgi.service.prefs.BackingStoreException;
 
+import io.usethesource.impulse.preferences.ResolvedPreferenceCache.Kind;
 import io.usethesource.impulse.runtime.RuntimePlugin;
 
 /**
@@ -79,6 +81,43 @@ public class PreferencesService implements IPreferencesService {
 			return defaultScope;
 		}
 	}
+
+	/**
+	 * Resolved values, shared by all instances, since builders and editors each create
+	 * their own PreferencesService
+	 */
+	private static final ResolvedPreferenceCache sResolved = new ResolvedPreferenceCache();
+
+	/*
+	 * Returns the resolved value for the current language and the given project, level
+	 * and key, resolving and caching it first if necessary. The project and level may
+	 * be null.
+	 */
+	private <T> T resolve(Kind kind, final IProject project, String level, String key, final Supplier<T> resolver) {
+		if (languageName == null) {
+			return resolver.get();
+		}
+		return sResolved.get(languageName, kind, (project != null) ? project.getName() : null, level, key, new Supplier<T>() {
+			public T get() {
+				watchNodes(project);
+				return resolver.get();
+			}
+		});
+	}
+
+	/*
+	 * Makes changes to the current language's nodes at any level, for the given
+	 * project, if any, invalidate the resolved values.
+	 */
+	private void watchNodes(IProject project) {
+		if (project != null) {
+			sResolved.watch(languageName, getScopeForProject(project).getNode(languageName));
+		}
+		sResolved.watch(languageName, instanceScope.getNode(languageName));
+		sResolved.watch(languageName, configurationScope.getNode(languageName));
+		sResolved.watch(languageName, defaultScope.getNode(languageName));
+	}
+
 	/*
 	 * Constructors
 	 */
@@ -366,8 +405,13 @@ public class PreferencesService implements IPreferencesService {
 	}
 	
 	
+	/*
+	 * The type-specific getters parse the resolved raw value the way the Eclipse
+	 * PreferencesService does, so that they share its cache entry.
+	 */
 	public boolean getBooleanPreference(String key) {
-		return preferencesService.getBoolean(languageName, key, false, specificProjectScope());
+		String value = getRawStringPreference(key);
+		return (value != null) ? Boolean.valueOf(value).booleanValue() : false;
 	}
 	
 	/*
@@ -416,33 +460,54 @@ public class PreferencesService implements IPreferencesService {
 	}
 	
 	public double getDoublePreference(String key) {
-		return preferencesService.getDouble(languageName, key, 0, specificProjectScope());
+		String value = getRawStringPreference(key);
+		try {
+			return (value != null) ? Double.parseDouble(value) : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
 	}
 	
 	public float getFloatPreference(String key) {
-		return preferencesService.getFloat(languageName, key, 0, specificProjectScope());
+		String value = getRawStringPreference(key);
+		try {
+			return (value != null) ? Float.parseFloat(value) : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
 	}
 		
 	public int getIntPreference(String key) {
-		return preferencesService.getInt(languageName, key, 0, specificProjectScope());
+		String value = getRawStringPreference(key);
+		try {
+			return (value != null) ? Integer.parseInt(value) : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
 	}
 	
 	public long getLongPreference(String key) {
-		return preferencesService.getLong(languageName, key, 0, specificProjectScope());
+		String value = getRawStringPreference(key);
+		try {
+			return (value != null) ? Long.parseLong(value) : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
 	}
 	
 	public String getStringPreference(String key) {
-		String result = preferencesService.getString(languageName, key, null, specificProjectScope());
-		//if (result.equals("")) {
-		//	result = null;
-		//}
-		return performSubstitutions(result);
+		// Only the raw value is cached, since substitutions like ${projectLoc:..} or
+		// ${pluginVersion:..} change without any preference change event
+		return performSubstitutions(getRawStringPreference(key));
 	}
 	
 
-	public String getRawStringPreference(String key) {
-		String result = preferencesService.getString(languageName, key, null, specificProjectScope());
-		return result;
+	public String getRawStringPreference(final String key) {
+		return resolve(Kind.RAW_VALUE, project, null, key, new Supplier<String>() {
+			public String get() {
+				return preferencesService.getString(languageName, key, null, specificProjectScope());
+			}
+		});
 	}
 	
 	/*
@@ -781,7 +846,15 @@ public class PreferencesService implements IPreferencesService {
 	/*	
 	 * Get preferences at a given level by type
 	 */
-	private IEclipsePreferences findPreferenceNode(String level, String key) {
+	private IEclipsePreferences findPreferenceNode(final String level, final String key) {
+		return resolve(Kind.NODE, project, level, key, new Supplier<IEclipsePreferences>() {
+			public IEclipsePreferences get() {
+				return searchPreferenceNode(level, key);
+			}
+		});
+	}
+
+	private IEclipsePreferences searchPreferenceNode(String level, String key) {
 		IScopeContext scope = getScopeForLevel(level);
 		IEclipsePreferences node = scope.getNode(languageName);
 		
@@ -1321,8 +1394,14 @@ public class PreferencesService implements IPreferencesService {
 		if (level != null && level.equals(PROJECT_LEVEL) && projectScope == null) {
 			throw new IllegalStateException("PreferencesService.getApplicableLevel (with project):  node for project requested when project scope is null");
 		}
-		
+		return resolve(Kind.LEVEL, project, level, key, new Supplier<String>() {
+			public String get() {
+				return searchApplicableLevel(project, key, level);
+			}
+		});
+	}
 
+	private String searchApplicableLevel(IProject project, String key, String level) {
 		int startIndex = level == null ? (project != null ? PROJECT_INDEX : INSTANCE_INDEX) : getIndexForLevel(level);
 
 		if (startIndex == PROJECT_INDEX) {
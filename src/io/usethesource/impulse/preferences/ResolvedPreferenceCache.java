@@ -0,0 +1,152 @@
+package io.usethesource.impulse.preferences;
+
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import org.eclipse.core.runtime.preferences.IEclipsePreferences;
+import org.eclipse.core.runtime.preferences.IEclipsePreferences.INodeChangeListener;
+import org.eclipse.core.runtime.preferences.IEclipsePreferences.IPreferenceChangeListener;
+import org.eclipse.core.runtime.preferences.IEclipsePreferences.NodeChangeEvent;
+import org.eclipse.core.runtime.preferences.IEclipsePreferences.PreferenceChangeEvent;
+
+/**
+ * The values that {@link PreferencesService}s resolved, by language, project, level and
+ * key, so that repeated queries (e.g. a builder asking for the same preference once per
+ * file) don't walk the preference scopes. Only raw values are cached; substitutions are
+ * performed on every query, since their outcome can change without a preference event.<br>
+ * The preference nodes that values are resolved from are watched; as soon as one of them
+ * changes or is removed, all entries for its language are dropped.
+ */
+class ResolvedPreferenceCache {
+    /**
+     * What an entry holds, since the same (project, level, key) can resolve to a raw
+     * value, the node that defines it, or the level that defines it
+     */
+    public enum Kind { RAW_VALUE, NODE, LEVEL }
+
+    /**
+     * Stands in for resolved null values, which concurrent maps can't hold
+     */
+    private static final Object NULL_VALUE= new Object();
+
+    /**
+     * The entries, by language name
+     */
+    private final ConcurrentMap<String, ConcurrentMap<Key, Object>> fEntries= new ConcurrentHashMap<String, ConcurrentMap<Key, Object>>();
+
+    /**
+     * The nodes that have listeners, weakly so that removed nodes can be collected;
+     * guarded by itself
+     */
+    private final Set<IEclipsePreferences> fWatchedNodes= Collections.newSetFromMap(new WeakHashMap<IEclipsePreferences, Boolean>());
+
+    /**
+     * @return the cached value for the given language, project, level and key, or else
+     * the value produced by the given resolver, which is then cached. The resolver is
+     * expected to {@link #watch(String, IEclipsePreferences)} the nodes it consults.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String language, Kind kind, String project, String level, String key, Supplier<T> resolver) {
+        ConcurrentMap<Key, Object> entries= getEntries(language);
+        Key entryKey= new Key(kind, project, level, key);
+        Object value= entries.get(entryKey);
+
+        if (value == null) {
+            T resolved= resolver.get();
+
+            // If the language was invalidated in the meantime, this goes into a map that
+            // is no longer reachable, so no stale value can be observed
+            entries.put(entryKey, (resolved != null) ? resolved : NULL_VALUE);
+            return resolved;
+        }
+        return (value != NULL_VALUE) ? (T) value : null;
+    }
+
+    /**
+     * Makes sure that changes to the given node, which holds preferences for the given
+     * language, invalidate that language's entries.
+     */
+    public void watch(final String language, IEclipsePreferences node) {
+        synchronized (fWatchedNodes) {
+            if (!fWatchedNodes.add(node)) {
+                return;
+            }
+        }
+        node.addPreferenceChangeListener(new IPreferenceChangeListener() {
+            public void preferenceChange(PreferenceChangeEvent event) {
+                invalidate(language);
+            }
+        });
+
+        final String nodeName= node.name();
+        IEclipsePreferences parent= (IEclipsePreferences) node.parent();
+
+        if (parent != null) {
+            parent.addNodeChangeListener(new INodeChangeListener() {
+                public void added(NodeChangeEvent event) { }
+
+                public void removed(NodeChangeEvent event) {
+                    if (nodeName.equals(event.getChild().name())) {
+                        invalidate(language);
+                    }
+                }
+            });
+        }
+    }
+
+    public void invalidate(String language) {
+        fEntries.remove(language);
+    }
+
+    private ConcurrentMap<Key, Object> getEntries(String language) {
+        ConcurrentMap<Key, Object> entries= fEntries.get(language);
+
+        if (entries == null) {
+            ConcurrentMap<Key, Object> newEntries= new ConcurrentHashMap<Key, Object>();
+
+            entries= fEntries.putIfAbsent(language, newEntries);
+            if (entries == null) {
+                entries= newEntries;
+            }
+        }
+        return entries;
+    }
+
+    private static final class Key {
+        private final Kind fKind;
+
+        private final String fProject;
+
+        private final String fLevel;
+
+        private final String fKey;
+
+        public Key(Kind kind, String project, String level, String key) {
+            fKind= kind;
+            fProject= project;
+            fLevel= level;
+            fKey= key;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other= (Key) obj;
+
+            return fKind == other.fKind && Objects.equals(fProject, other.fProject)
+                    && Objects.equals(fLevel, other.fLevel) && Objects.equals(fKey, other.fKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fKind, fProject, fLevel, fKey);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package io.usethesource.impulse.runtime;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.core.runtime.IPath;
+
+/**
+ * A registry of histograms that record where time goes in the editor and builder
+ * pipelines. Every measurement is recorded both per language and per file, so that
+ * the language service or the file that makes editors slow can be identified.
+ * Durations are recorded in microseconds.
+ * <br>
+ * The registry is obtained through {@link RuntimePlugin#getMetricsRegistry()}, and its
+ * contents can be queried through {@link #getHistogram(String, String)} and
+ * {@link #getHistogram(String, String, String)}, or dumped using {@link #writeCSV(Writer)}
+ * or {@link #writeJSON(Writer)}.
+ */
+public class MetricsRegistry {
+    /**
+     * Duration of IParseController.parse()
+     */
+    public static final String PARSE_TIME= "parse";
+
+    /**
+     * Duration of IModelListener.update(); the metric name is suffixed with the
+     * listener's class name
+     */
+    public static final String LISTENER_UPDATE_TIME= "listenerUpdate:";
+
+    /**
+     * Duration of PresentationController.update()
+     */
+    public static final String PRESENTATION_UPDATE_TIME= "presentationUpdate";
+
+    /**
+     * Number of style ranges submitted to the source viewer per presentation update of a
+     * (chunk of a) damaged region; unchanged styles are not submitted
+     */
+    public static final String PRESENTATION_STYLE_RANGES= "presentationStyleRanges";
+
+    /**
+     * Duration of MarkerCreatorWithBatching.flush()
+     */
+    public static final String MARKER_FLUSH_TIME= "markerFlush";
+
+    private static final String UNKNOWN= "<unknown>";
+
+    private final Map<Key, Histogram> fHistograms= new ConcurrentHashMap<Key, Histogram>();
+
+    /**
+     * Records the time elapsed since the given start time, as obtained from System.nanoTime().
+     */
+    public void recordTime(String metric, String language, IPath file, long startNanos) {
+        record(metric, language, file, (System.nanoTime() - startNanos) / 1000);
+    }
+
+    public void record(String metric, String language, IPath file, long value) {
+        String languageKey= (language != null) ? language : UNKNOWN;
+
+        getOrCreate(new Key(metric, languageKey, null)).record(value);
+        getOrCreate(new Key(metric, languageKey, (file != null) ? file.toPortableString() : UNKNOWN)).record(value);
+    }
+
+    /**
+     * @return the histogram of the given metric over all files of the given language,
+     * or null if nothing was recorded yet
+     */
+    public Histogram getHistogram(String metric, String language) {
+        return fHistograms.get(new Key(metric, language, null));
+    }
+
+    /**
+     * @return the histogram of the given metric for the given file (as a portable path
+     * string), or null if nothing was recorded yet
+     */
+    public Histogram getHistogram(String metric, String language, String file) {
+        return fHistograms.get(new Key(metric, language, file));
+    }
+
+    public void clear() {
+        fHistograms.clear();
+    }
+
+    private Histogram getOrCreate(Key key) {
+        Histogram histogram= fHistograms.get(key);
+
+        if (histogram == null) {
+            Histogram newHistogram= new Histogram();
+
+            histogram= fHistograms.putIfAbsent(key, newHistogram);
+            if (histogram == null) {
+                histogram= newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    private List<Key> sortedKeys() {
+        List<Key> keys= new ArrayList<Key>(fHistograms.keySet());
+
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Writes one line per histogram; lines for a language as a whole have an empty file column.
+     */
+    public void writeCSV(Writer writer) throws IOException {
+        writer.write("metric,language,file,count,sum,min,max,mean,p50,p90,p99\n");
+        for (Key key : sortedKeys()) {
+            Histogram h= fHistograms.get(key);
+
+            writer.write(csv(key.fMetric) + "," + csv(key.fLanguage) + "," + (key.fFile != null ? csv(key.fFile) : "") + ","
+                    + h.getCount() + "," + h.getSum() + "," + h.getMin() + "," + h.getMax() + "," + h.getMean() + ","
+                    + h.getPercentile(0.5) + "," + h.getPercentile(0.9) + "," + h.getPercentile(0.99) + "\n");
+        }
+        writer.flush();
+    }
+
+    public void writeJSON(Writer writer) throws IOException {
+        writer.write("[");
+        boolean first= true;
+        for (Key key : sortedKeys()) {
+            Histogram h= fHistograms.get(key);
+
+            writer.write(first ? "\n" : ",\n");
+            writer.write("  { \"metric\": " + json(key.fMetric) + ", \"language\": " + json(key.fLanguage)
+                    + ", \"file\": " + (key.fFile != null ? json(key.fFile) : "null")
+                    + ", \"count\": " + h.getCount() + ", \"sum\": " + h.getSum() + ", \"min\": " + h.getMin()
+                    + ", \"max\": " + h.getMax() + ", \"mean\": " + h.getMean() + ", \"p50\": " + h.getPercentile(0.5)
+                    + ", \"p90\": " + h.getPercentile(0.9) + ", \"p99\": " + h.getPercentile(0.99) + " }");
+            first= false;
+        }
+        writer.write("\n]\n");
+        writer.flush();
+    }
+
+    private static String csv(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+            return s;
+        }
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String json(String s) {
+        StringBuilder sb= new StringBuilder("\"");
+
+        for (int i= 0; i < s.length(); i++) {
+            char c= s.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < ' ') {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * A histogram with power-of-two buckets, so that recording a value is cheap and the
+     * memory footprint is constant. Percentiles are approximated by the upper bound of
+     * the bucket in which they fall.
+     */
+    public static class Histogram {
+        private final long[] fBuckets= new long[64];
+
+        private long fCount;
+
+        private long fSum;
+
+        private long fMin= Long.MAX_VALUE;
+
+        private long fMax= Long.MIN_VALUE;
+
+        public synchronized void record(long value) {
+            if (value < 0) {
+                value= 0;
+            }
+            fBuckets[64 - Long.numberOfLeadingZeros(value)]++;
+            fCount++;
+            fSum+= value;
+            fMin= Math.min(fMin, value);
+            fMax= Math.max(fMax, value);
+        }
+
+        public synchronized long getCount() {
+            return fCount;
+        }
+
+        public synchronized long getSum() {
+            return fSum;
+        }
+
+        public synchronized long getMin() {
+            return fCount == 0 ? 0 : fMin;
+        }
+
+        public synchronized long getMax() {
+            return fCount == 0 ? 0 : fMax;
+        }
+
+        public synchronized long getMean() {
+            return fCount == 0 ? 0 : fSum / fCount;
+        }
+
+        /**
+         * @param fraction a number between 0 and 1, e.g. 0.9 for the 90th percentile
+         */
+        public synchronized long getPercentile(double fraction) {
+            long rank= (long) Math.ceil(fraction * fCount);
+            long seen= 0;
+
+            for (int i= 0; i < fBuckets.length; i++) {
+                seen+= fBuckets[i];
+                if (seen >= rank && seen > 0) {
+                    // Bucket i holds the values in [2^(i-1), 2^i - 1]
+                    return Math.min(fMax, i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return getMax();
+        }
+    }
+
+    private static final class Key implements Comparable<Key> {
+        private final String fMetric;
+
+        private final String fLanguage;
+
+        private final String fFile;
+
+        public Key(String metric, String language, String file) {
+            fMetric= metric;
+            fLanguage= language;
+            fFile= file;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other= (Key) obj;
+
+            return fMetric.equals(other.fMetric) && fLanguage.equals(other.fLanguage)
+                    && (fFile == null ? other.fFile == null : fFile.equals(other.fFile));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * fMetric.hashCode() + fLanguage.hashCode()) + (fFile != null ? fFile.hashCode() : 0);
+        }
+
+        public int compareTo(Key other) {
+            int result= fMetric.compareTo(other.fMetric);
+
+            if (result == 0) {
+                result= fLanguage.compareTo(other.fLanguage);
+            }
+            if (result == 0 && fFile != other.fFile) {
+                result= (fFile == null) ? -1 : (other.fFile == null) ? 1 : fFile.compareTo(other.fFile);
+            }
+            return result;
+        }
+    }
+}
@@ -22,6 +22,7 @@ import org.eclipse.jface.resource.ImageDescriptor;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
 
+import io.usethesource.impulse.indexing.IncrementalIndexer;
 import io.usethesource.impulse.model.ISourceEntity;
 import io.usethesource.impulse.model.ModelFactory;
 import io.usethesource.impulse.model.ModelFactory.ModelException;
@@ -132,6 +133,7 @@ public class RuntimePlugin extends PluginBase {
      * This method is called when the plug-in is stopped
      */
     public void stop(BundleContext context) throws Exception {
+        IncrementalIndexer.uninstallAll();
         super.stop(context);
         sPlugin= null;
     }
@@ -165,5 +167,14 @@ public class RuntimePlugin extends PluginBase {
         return getInstance().internalGetImageDescriptorRegistry();
     }
 
+    private static final MetricsRegistry sMetricsRegistry= new MetricsRegistry();
+
+    /**
+     * @return the registry of parse, model listener, presentation and marker timings
+     */
+    public static MetricsRegistry getMetricsRegistry() {
+        return sMetricsRegistry;
+    }
+
   
 }
@@ -0,0 +1,46 @@
+package io.usethesource.impulse.services;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.jface.text.ITextViewer;
+import org.eclipse.jface.text.contentassist.ICompletionProposal;
+
+import io.usethesource.impulse.parser.IParseController;
+
+/**
+ * An optional extension of {@link IContentProposer} for content proposers that may take
+ * a while, e.g. because they do type inference or consult an index.<br>
+ * The editor calls {@link #computeContentProposals(IParseController, int, ITextViewer, IProposalCollector, IProgressMonitor)}
+ * on a background thread, and waits only for a limited time before showing the proposals
+ * delivered so far; the computation is then cancelled through the given progress monitor.
+ * Implementations should therefore deliver their proposals in batches, most relevant first,
+ * and check the monitor regularly.
+ */
+public interface IAsyncContentProposer extends IContentProposer {
+    /**
+     * Receives the proposals of an asynchronous computation, as they become available.
+     */
+    public interface IProposalCollector {
+        /**
+         * Adds a batch of proposals to those computed so far. Batches delivered after the
+         * computation was cancelled are ignored.
+         */
+        public void accept(ICompletionProposal[] proposals);
+    }
+
+    /**
+     * Computes the content proposals applicable relative to the AST of the given parse
+     * controller at the given position, and delivers them to the given collector.<br>
+     * This method is not called on the UI thread, so it may use the viewer's document,
+     * but not its widget.
+     *
+     * @param controller    A parse controller from which the AST of the document being edited
+     *                      can be obtained
+     * @param offset        The offset for which content proposals are sought
+     * @param viewer        The viewer in which the document is being displayed
+     * @param collector     The collector to deliver batches of proposals to
+     * @param monitor       The monitor through which the computation is cancelled, once
+     *                      the editor no longer waits for its results
+     */
+    public void computeContentProposals(IParseController controller, int offset, ITextViewer viewer,
+            IProposalCollector collector, IProgressMonitor monitor);
+}
@@ -0,0 +1,32 @@
+package io.usethesource.impulse.services;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.jface.text.source.ISourceViewer;
+
+import io.usethesource.impulse.parser.IParseController;
+
+/**
+ * An optional extension of {@link IHoverHelper} for hover helpers that do expensive
+ * lookups.<br>
+ * The editor calls {@link #getHoverHelpAt(IParseController, ISourceViewer, int, IProgressMonitor)}
+ * in a background job, and waits only briefly for it. If the help isn't ready in time,
+ * the hover shows the annotations at the offset instead; the help is cached when it
+ * arrives, and shown the next time the same token is hovered over, until the source is
+ * reparsed.
+ */
+public interface IAsyncHoverHelper extends IHoverHelper {
+    /**
+     * Provide language-specific hover help for the token at the given offset.<br>
+     * This method is not called on the UI thread, so it may use the viewer's document,
+     * but not its widget.
+     *
+     * @param parseController the parse controller holding the current AST
+     * @param viewer the viewer in which the source is being displayed
+     * @param offset the offset in the original input stream
+     * @param monitor the monitor through which the computation is cancelled, e.g. when
+     * the source is reparsed
+     * @return a human-readable text string describing what the element at the given offset
+     * represents, or null if there is none
+     */
+    public String getHoverHelpAt(IParseController parseController, ISourceViewer viewer, int offset, IProgressMonitor monitor);
+}
@@ -0,0 +1,23 @@
+package io.usethesource.impulse.services;
+
+import io.usethesource.impulse.parser.IParseController;
+
+/**
+ * An optional extension of {@link IOccurrenceMarker} for occurrence markers that can
+ * compute the occurrences of all symbols in a single pass over the AST.<br>
+ * The "mark occurrences" action builds the index once per AST, and then answers every
+ * selection change from the index, instead of locating the selected node and searching
+ * for its occurrences each time the caret moves.
+ */
+public interface IOccurrenceIndexer extends IOccurrenceMarker {
+    /**
+     * Adds every occurrence of every symbol in the given AST to the given index.
+     * The occurrences of a symbol are the source ranges that {@link #getOccurrencesOf(IParseController, Object)}
+     * would have produced for any of them; the symbol itself can be any object that
+     * identifies them as a group (e.g. a declaration node, or a binding).
+     * @param parseController the parse controller that produced the AST
+     * @param ast the root of the AST
+     * @param index the index to fill
+     */
+    public void indexOccurrences(IParseController parseController, Object ast, OccurrenceIndex index);
+}
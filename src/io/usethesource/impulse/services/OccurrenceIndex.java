@@ -0,0 +1,176 @@
+package io.usethesource.impulse.services;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jface.text.Position;
+
+/**
+ * Maps the symbols of one AST to the source ranges of their occurrences, and source
+ * offsets back to symbols, as filled in by an {@link IOccurrenceIndexer}.<br>
+ * Occurrences are kept in primitive arrays; once the index is first queried, they are
+ * sorted by offset, so that the occurrence under a selection is found by binary search.
+ * Occurrences may nest (e.g. a qualified name and its qualifier); a selection then
+ * belongs to the innermost occurrence that contains it.
+ */
+public class OccurrenceIndex {
+    private final Map<Object, Integer> fSymbolIDs= new HashMap<Object, Integer>();
+
+    private int[] fOffsets= new int[64];
+
+    private int[] fLengths= new int[64];
+
+    private int[] fSymbols= new int[64];
+
+    private int fSize;
+
+    private int fMaxLength;
+
+    /**
+     * The indices of the occurrences of each symbol: those of symbol s are
+     * fSymbolOccurrences[fSymbolStarts[s] .. fSymbolStarts[s+1]). Null until the index
+     * is first queried.
+     */
+    private int[] fSymbolStarts;
+
+    private int[] fSymbolOccurrences;
+
+    /**
+     * Records an occurrence of the given symbol. Occurrences with a negative offset or a
+     * non-positive length are ignored.
+     */
+    public synchronized void addOccurrence(Object symbol, int offset, int length) {
+        if (symbol == null || offset < 0 || length <= 0) {
+            return;
+        }
+        Integer id= fSymbolIDs.get(symbol);
+
+        if (id == null) {
+            id= fSymbolIDs.size();
+            fSymbolIDs.put(symbol, id);
+        }
+        if (fSize == fOffsets.length) {
+            fOffsets= Arrays.copyOf(fOffsets, 2 * fSize);
+            fLengths= Arrays.copyOf(fLengths, 2 * fSize);
+            fSymbols= Arrays.copyOf(fSymbols, 2 * fSize);
+        }
+        fOffsets[fSize]= offset;
+        fLengths[fSize]= length;
+        fSymbols[fSize]= id;
+        fSize++;
+        fMaxLength= Math.max(fMaxLength, length);
+        fSymbolStarts= null;
+    }
+
+    public synchronized int size() {
+        return fSize;
+    }
+
+    /**
+     * @return the positions of all occurrences of the symbol that has an occurrence
+     * containing the given range, in document order; or null if there is no such
+     * occurrence
+     */
+    public synchronized Position[] getOccurrencesAt(int offset, int length) {
+        int occurrence= findOccurrence(offset, offset + length);
+
+        if (occurrence < 0) {
+            return null;
+        }
+        int symbol= fSymbols[occurrence];
+        int from= fSymbolStarts[symbol];
+        int to= fSymbolStarts[symbol + 1];
+        Position[] result= new Position[to - from];
+
+        for(int i= from; i < to; i++) {
+            int idx= fSymbolOccurrences[i];
+
+            result[i - from]= new Position(fOffsets[idx], fLengths[idx]);
+        }
+        return result;
+    }
+
+    /**
+     * @return the index of the innermost occurrence that contains [start, end), or -1
+     */
+    private int findOccurrence(int start, int end) {
+        if (fSymbolStarts == null) {
+            freeze();
+        }
+        // The last occurrence that starts at or before start
+        int lo= 0, hi= fSize;
+
+        while (lo < hi) {
+            int mid= (lo + hi) >>> 1;
+
+            if (fOffsets[mid] <= start) {
+                lo= mid + 1;
+            } else {
+                hi= mid;
+            }
+        }
+        // Scanning backwards, the first containing occurrence is the innermost one. No
+        // occurrence starting before end - fMaxLength can contain the range, which bounds
+        // the scan when the selection isn't on an occurrence at all.
+        for(int i= lo - 1; i >= 0 && fOffsets[i] >= end - fMaxLength; i--) {
+            if (fOffsets[i] + fLengths[i] >= end) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sorts the occurrences by offset (and, at equal offsets, longest first), and groups
+     * them by symbol.
+     */
+    private void freeze() {
+        Integer[] order= new Integer[fSize];
+
+        for(int i= 0; i < fSize; i++) {
+            order[i]= i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                if (fOffsets[o1] != fOffsets[o2]) {
+                    return fOffsets[o1] < fOffsets[o2] ? -1 : 1;
+                }
+                return fLengths[o2] - fLengths[o1];
+            }
+        });
+
+        int[] offsets= new int[fOffsets.length];
+        int[] lengths= new int[fOffsets.length];
+        int[] symbols= new int[fOffsets.length];
+
+        for(int i= 0; i < fSize; i++) {
+            offsets[i]= fOffsets[order[i]];
+            lengths[i]= fLengths[order[i]];
+            symbols[i]= fSymbols[order[i]];
+        }
+        fOffsets= offsets;
+        fLengths= lengths;
+        fSymbols= symbols;
+
+        int numSymbols= fSymbolIDs.size();
+        int[] starts= new int[numSymbols + 1];
+
+        for(int i= 0; i < fSize; i++) {
+            starts[fSymbols[i] + 1]++;
+        }
+        for(int s= 0; s < numSymbols; s++) {
+            starts[s + 1]+= starts[s];
+        }
+
+        int[] next= Arrays.copyOf(starts, numSymbols);
+        int[] occurrences= new int[fSize];
+
+        for(int i= 0; i < fSize; i++) {
+            occurrences[next[fSymbols[i]]++]= i;
+        }
+        fSymbolStarts= starts;
+        fSymbolOccurrences= occurrences;
+    }
+}
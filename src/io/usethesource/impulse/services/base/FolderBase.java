@@ -13,8 +13,12 @@ package io.usethesource.impulse.services.base;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.eclipse.jface.text.Position;
 import org.eclipse.jface.text.source.Annotation;
@@ -46,12 +50,10 @@ public abstract class FolderBase implements IFoldingUpdater {
 
     protected IParseController parseController = null;
 
-    // Used to support checking of whether annotations have
-    // changed between invocations of updateFoldingStructure
-    // (because, if they haven't, then it's probably best not
-    // to update the folding structure)
-    private ArrayList<Annotation> oldAnnotationsList = null;
-    private Annotation[] oldAnnotationsArray;
+    // The annotations this folder put into the annotation model, as of the
+    // previous invocation of updateFoldingStructure; they are reused where
+    // possible, so that they keep their collapsed/expanded state
+    private List<Annotation> modelAnnotations = Collections.emptyList();
 
     protected boolean fDebugMode = false;
 
@@ -172,44 +174,10 @@ public abstract class FolderBase implements IFoldingUpdater {
 			    dumpAnnotations(annotations, newAnnotations);
 			}
 
-			// Update the annotation model if there have been changes
-			// but not otherwise (since update leads to redrawing of the	
-			// source in the editor, which is likely to be unwelcome if
-			// there haven't been any changes relevant to folding)
-			boolean updateNeeded = false;
-			if (oldAnnotationsList == null) {
-				// Should just be the first time through
-				updateNeeded = true;
-			} else {
-				// Check to see whether the current and previous annotations
-				// differ in any significant way; if not, then there's no
-				// reason to update the annotation model.
-				// Note:  This test may be implemented in various ways that may
-				// be more or less simple, efficient, correct, etc.  (The
-				// default test provided below is simplistic although quick and
-				// usually effective.)
-				updateNeeded = differ(oldAnnotationsList, annotations);
-			}
-			if (updateNeeded) {
-				// Save the current annotations to compare for changes the next time
-				oldAnnotationsList = new ArrayList<Annotation>();
-				for (int i = 0; i < annotations.size(); i++) {
-					oldAnnotationsList.add(annotations.get(i));	
-				}
-			} else {
-			}
-		
-			// Need to curtail calls to modifyAnnotations() because these lead to calls
-			// to fireModelChanged(), which eventually lead to calls to updateFoldingStructure,
-			// which lead back here, which would lead to another call to modifyAnnotations()
-			// (unless those were curtailed)
-			if (updateNeeded) {
-				annotationModel.modifyAnnotations(oldAnnotationsArray, newAnnotations, null);
-				// Capture the latest set of annotations in a form that can be used the next
-				// time that it is necessary to modify the annotations
-				oldAnnotationsArray = (Annotation[]) annotations.toArray(new Annotation[annotations.size()]);
-			} else {
-			}
+			// Update the annotation model only if there have been changes, since
+			// an update leads to redrawing of the source in the editor, and to
+			// calls to fireModelChanged(), which eventually lead back here
+			updateAnnotationModel(annotationModel);
 
 			newAnnotations.clear();
 			annotations.clear();			
@@ -219,6 +187,95 @@ public abstract class FolderBase implements IFoldingUpdater {
 	}	
 
 
+	/**
+	 * Brings the given annotation model in line with the annotations made during the
+	 * last visit of the AST, in a single call to modifyAnnotations(). Existing annotations
+	 * whose extent is unchanged are left alone. Existing annotations that start or end
+	 * where a new one does are reused, with their position updated. Only the remaining
+	 * new annotations are added, and the remaining existing ones removed.
+	 */
+	private void updateAnnotationModel(ProjectionAnnotationModel annotationModel) {
+		// The model has kept the positions of its annotations up to date with document
+		// changes, so most of them match a new annotation exactly
+		Map<Long, Annotation> byExtent = new HashMap<Long, Annotation>();
+		List<Annotation> deletions = new ArrayList<Annotation>();
+
+		for (Annotation a : modelAnnotations) {
+			Position pos = annotationModel.getPosition(a);
+
+			if (pos == null) {
+				continue; // no longer in the model
+			}
+			if (pos.isDeleted()) {
+				deletions.add(a);
+				continue;
+			}
+			Annotation duplicate = byExtent.put(extentKey(pos), a);
+
+			if (duplicate != null) {
+				deletions.add(duplicate);
+			}
+		}
+
+		List<Annotation> currentAnnotations = new ArrayList<Annotation>(annotations.size());
+		List<Annotation> unmatched = new ArrayList<Annotation>();
+
+		for (Annotation a : annotations) {
+			Annotation existing = byExtent.remove(extentKey(newAnnotations.get(a)));
+
+			if (existing != null) {
+				currentAnnotations.add(existing);
+			} else {
+				unmatched.add(a);
+			}
+		}
+
+		Set<Annotation> remaining = new HashSet<Annotation>(byExtent.values());
+		Map<Integer, Annotation> byStart = new HashMap<Integer, Annotation>();
+		Map<Integer, Annotation> byEnd = new HashMap<Integer, Annotation>();
+
+		for (Annotation a : remaining) {
+			Position pos = annotationModel.getPosition(a);
+
+			byStart.put(pos.getOffset(), a);
+			byEnd.put(pos.getOffset() + pos.getLength(), a);
+		}
+
+		Map<Annotation, Position> additions = new HashMap<Annotation, Position>();
+		List<Annotation> modifications = new ArrayList<Annotation>();
+
+		for (Annotation a : unmatched) {
+			Position newPos = newAnnotations.get(a);
+			Annotation existing = byStart.get(newPos.getOffset());
+
+			if (existing == null || !remaining.contains(existing)) {
+				existing = byEnd.get(newPos.getOffset() + newPos.getLength());
+			}
+			if (existing != null && remaining.remove(existing)) {
+				Position pos = annotationModel.getPosition(existing);
+
+				pos.setOffset(newPos.getOffset());
+				pos.setLength(newPos.getLength());
+				modifications.add(existing);
+				currentAnnotations.add(existing);
+			} else {
+				additions.put(a, newPos);
+				currentAnnotations.add(a);
+			}
+		}
+		deletions.addAll(remaining);
+
+		if (!deletions.isEmpty() || !additions.isEmpty() || !modifications.isEmpty()) {
+			annotationModel.modifyAnnotations(deletions.toArray(new Annotation[deletions.size()]), additions,
+					modifications.toArray(new Annotation[modifications.size()]));
+		}
+		modelAnnotations = currentAnnotations;
+	}
+
+	private static long extentKey(Position pos) {
+		return ((long) pos.getOffset() << 32) | (pos.getLength() & 0xffffffffL);
+	}
+
 	/**
 	 * A method to test whether there has been a significant change in the folding
 	 * annotations for a source text.  The method works by comparing two lists of
@@ -243,7 +300,10 @@ public abstract class FolderBase implements IFoldingUpdater {
 	 * @return			true iff there has been a "significant" difference in the
 	 * 					two given lists of annotations
 	 * 
+	 * @deprecated No longer called: updateFoldingStructure() now compares the extents
+	 * of the old and new annotations, and only applies the differences.
 	 */
+	@Deprecated
 	protected boolean differ(List<Annotation> list1, List<Annotation> list2) {
 		if (list1.size() != list2.size()) {
 			return true;
@@ -18,24 +18,71 @@ import io.usethesource.impulse.core.ErrorHandler;
 import io.usethesource.impulse.editor.ModelTreeNode;
 import io.usethesource.impulse.language.ILanguageService;
 
+/**
+ * Base class for builders of the tree model shown by the outline. Subclasses create the
+ * model by visiting the AST, calling createSubItem() and pushSubItem()/popSubItem().<br>
+ * For huge models, subclasses can use createLazySubItem() instead, for items whose own
+ * sub-items should only be created once the outline shows them; those get created by
+ * {@link #visitChildren(Object)}.<br>
+ * Each thread has its own item stack, so that the outline can compute lazy sub-items on
+ * the UI thread without waiting for a build in the background.
+ */
 public abstract class TreeModelBuilderBase implements ILanguageService {
     protected ModelTreeNode fModelRoot;
 
-    private Stack<ModelTreeNode> fItemStack= new Stack<ModelTreeNode>();
+    private final ThreadLocal<Stack<ModelTreeNode>> fItemStack= new ThreadLocal<Stack<ModelTreeNode>>() {
+        @Override
+        protected Stack<ModelTreeNode> initialValue() {
+            return new Stack<ModelTreeNode>();
+        }
+    };
+
+    private final ModelTreeNode.IChildrenComputer fChildrenComputer= new ModelTreeNode.IChildrenComputer() {
+        public void computeChildren(ModelTreeNode node) {
+            fItemStack.get().push(node);
+            try {
+                visitChildren(node.getASTNode());
+            } catch (Exception e) {
+                ErrorHandler.reportError("Exception caught from invocation of language-specific tree model builder implementation", e);
+            } finally {
+                fItemStack.get().pop();
+            }
+        }
+    };
 
     public final ModelTreeNode buildTree(Object rootASTNode) {
-        fItemStack.push(fModelRoot= createTopItem(new ModelTreeNode(rootASTNode)));
+        // fModelRoot may be overwritten meanwhile by a build on another thread
+        ModelTreeNode root= createTopItem(new ModelTreeNode(rootASTNode));
+
+        fModelRoot= root;
+        fItemStack.get().push(root);
         try {
             visitTree(rootASTNode);
         } catch (Exception e) {
             ErrorHandler.reportError("Exception caught from invocation of language-specific tree model builder implementation", e);
         }
-        fItemStack.pop();
-        return fModelRoot;
+        fItemStack.get().pop();
+        return root;
     }
 
+    /**
+     * Creates the items for the given AST, by calling createSubItem() and the like. Trees
+     * may be built on several threads at once (e.g. in the background and on the UI thread),
+     * so state that a build needs must not live in fields of the builder, but in locals or
+     * in a visitor created per call.
+     */
     protected abstract void visitTree(Object root);
 
+    /**
+     * Creates the sub-items of an item that was created by createLazySubItem(), when they
+     * are first needed; the item is on top of the item stack. Builders that create lazy
+     * sub-items override this; by default, lazy items have no sub-items.<br>
+     * This may be called on the UI thread while visitTree() runs on another thread, so it
+     * must not rely on state that visitTree() maintains.
+     * @param astNode the AST node of the item
+     */
+    protected void visitChildren(Object astNode) { }
+
     protected ModelTreeNode createTopItem(Object n) {
         return createTopItem(n, ModelTreeNode.DEFAULT_CATEGORY);
     }
@@ -50,22 +97,37 @@ public abstract class TreeModelBuilderBase implements ILanguageService {
     }
 
     protected ModelTreeNode createSubItem(Object n, int category) {
-        final ModelTreeNode parent= fItemStack.peek();
+        final ModelTreeNode parent= fItemStack.get().peek();
         ModelTreeNode treeNode= new ModelTreeNode(n, parent, category);
 
         parent.addChild(treeNode);
         return treeNode;
     }
 
+    /**
+     * Creates a sub-item whose own sub-items are created by {@link #visitChildren(Object)},
+     * when they are first asked for (e.g. when the item is expanded in the outline).
+     */
+    protected ModelTreeNode createLazySubItem(Object n) {
+        return createLazySubItem(n, ModelTreeNode.DEFAULT_CATEGORY);
+    }
+
+    protected ModelTreeNode createLazySubItem(Object n, int category) {
+        ModelTreeNode treeNode= createSubItem(n, category);
+
+        treeNode.setChildrenComputer(fChildrenComputer);
+        return treeNode;
+    }
+
     protected ModelTreeNode pushSubItem(Object n) {
         return pushSubItem(n, ModelTreeNode.DEFAULT_CATEGORY);
     }
 
     protected ModelTreeNode pushSubItem(Object n, int category) {
-        return fItemStack.push(createSubItem(n, category));
+        return fItemStack.get().push(createSubItem(n, category));
     }
 
     protected void popSubItem() {
-        fItemStack.pop();
+        fItemStack.get().pop();
     }
 }
@@ -14,8 +14,10 @@ package io.usethesource.impulse.utils;
 
 import java.net.URL;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+import org.eclipse.core.runtime.ContributorFactoryOSGi;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IConfigurationElement;
 import org.eclipse.core.runtime.IContributor;
@@ -202,7 +204,6 @@ public class ExtensionFactory {
      * @param language
      * @return
      */
-    @SuppressWarnings("deprecation")
     public static boolean languageServiceExists(String pluginID,
             String extensionPointID, Language language) {
         if (language == null)
@@ -210,26 +211,9 @@ public class ExtensionFactory {
 
         IExtensionPoint extensionPoint = Platform.getExtensionRegistry()
                 .getExtensionPoint(pluginID, extensionPointID);
-        IConfigurationElement[] elements = extensionPoint
-                .getConfigurationElements();
-        String lowerLang = language.getName().toLowerCase();
-
-        if (elements != null) {
-            for (int n = 0; n < elements.length; n++) {
-                IConfigurationElement element = elements[n];
-                Bundle bundle = Platform.getBundle(element
-                        .getDeclaringExtension().getNamespace());
-
-                if (bundle != null) {
-                    final String attrValue = element
-                            .getAttribute(Language.LANGUAGE_ID_ATTR);
-
-                    if (attrValue != null
-                            && lowerLang.equals(attrValue.toLowerCase())) {
-                        return true;
-                    }
-                }
-            }
+
+        if (!ExtensionIndex.getInstance().getElements(extensionPoint, language.getName()).isEmpty()) {
+            return true;
         }
 
         if (languageIsDerived(language)) {
@@ -251,18 +235,15 @@ public class ExtensionFactory {
     private static Set<ILanguageService> getLanguageServiceSet(
             IExtensionPoint extensionPoint, String language)
             throws ExtensionException {
-        IConfigurationElement[] elements = extensionPoint
-                .getConfigurationElements();
+        List<IConfigurationElement> elements = ExtensionIndex.getInstance()
+                .getElements(extensionPoint, language);
         Set<ILanguageService> result = new HashSet<ILanguageService>();
 
-        if (elements != null) {
-            for (int n = 0; n < elements.length; n++) {
-                IConfigurationElement element = elements[n];
-                ILanguageService service = loadLanguageService(extensionPoint, language, "class", element);
-                
-                if (service != null) {
-                    result.add(service);
-                }
+        for (IConfigurationElement element : elements) {
+            ILanguageService service = loadLanguageService(extensionPoint, language, "class", element);
+
+            if (service != null) {
+                result.add(service);
             }
         }
 
@@ -282,16 +263,13 @@ public class ExtensionFactory {
     private static ILanguageService getLanguageServiceForElement(
             IExtensionPoint extensionPoint, String language, String elementName)
             throws ExtensionException {
-        IConfigurationElement[] elements = extensionPoint
-                .getConfigurationElements();
-       
-        if (elements != null) {
-            for (int n = 0; n < elements.length; n++) {
-                IConfigurationElement element = elements[n];
-                ILanguageService service = loadLanguageService(extensionPoint, language, elementName, element);
-                if (service != null) {
-                    return service;
-                }
+        List<IConfigurationElement> elements = ExtensionIndex.getInstance()
+                .getElements(extensionPoint, language);
+
+        for (IConfigurationElement element : elements) {
+            ILanguageService service = loadLanguageService(extensionPoint, language, elementName, element);
+            if (service != null) {
+                return service;
             }
         }
 
@@ -301,7 +279,8 @@ public class ExtensionFactory {
     /**
      * Convenience method for actually creating an object from an element in an
      * extension point. Catches common exceptions that may be thrown and tries to
-     * translate them into ServiceExceptions.
+     * translate them into ServiceExceptions. The element must be one that the
+     * ExtensionIndex found for the given language.
      * 
      * @param extensionPoint
      * @param language
@@ -311,46 +290,36 @@ public class ExtensionFactory {
      * @throws ExtensionException
      */
     private static ILanguageService loadLanguageService(IExtensionPoint extensionPoint, String language, String elementName, IConfigurationElement element) throws ExtensionException {
-        Bundle bundle = Platform.getBundle(element.getDeclaringExtension().getContributor().getName());
-        
-        String lowerLang = language.toLowerCase();
-
-        if (bundle != null) {
-            final String attrValue = element.getAttribute(Language.LANGUAGE_ID_ATTR);
-
-            if (attrValue != null && lowerLang.equals(attrValue.toLowerCase())) {
-                try {
-                    return (ILanguageService) element.createExecutableExtension(elementName);
-                } catch (ClassCastException e) {
-                    logException(new ExtensionException(
-                            "Extension does not point to a class that implements an ILanguageService:"
-                                    + element, e));
-                } catch (IncompatibleClassChangeError e) {
-                    logException(new ExtensionException("Unable to instantiate implementation of "
+        try {
+            return (ILanguageService) element.createExecutableExtension(elementName);
+        } catch (ClassCastException e) {
+            logException(new ExtensionException(
+                    "Extension does not point to a class that implements an ILanguageService:"
+                            + element, e));
+        } catch (IncompatibleClassChangeError e) {
+            logException(new ExtensionException("Unable to instantiate implementation of "
+                    + extensionPoint.getLabel()
+                    + " plugin for language '"
+                    + language
+                    + "' because some class in the plugin is incompatible (out-of-date)", e));
+        } catch (CoreException e) {
+            logException(new ExtensionException(
+                    "Unable to instantiate implementation of "
                             + extensionPoint.getLabel()
                             + " plugin for language '"
                             + language
-                            + "' because some class in the plugin is incompatible (out-of-date)", e));
-                } catch (CoreException e) {
-                    logException(new ExtensionException(
-                            "Unable to instantiate implementation of "
-                                    + extensionPoint.getLabel()
-                                    + " plugin for language '"
-                                    + language
-                                    + "' because of the following low level exception: "
-                                    + e.getStatus().getException(), e));
-                } catch (NoClassDefFoundError e) {
-                    logException(new ExtensionException(
-                            "Unable to instantiate implementation of "
-                                    + extensionPoint.getLabel()
-                                    + " plugin for language '"
-                                    + language
-                                    + "' because it may not have a public zero argument constructor, or some class referenced by the plugin could not be found in the class path.",
-                            e));
-                }
-            }
+                            + "' because of the following low level exception: "
+                            + e.getStatus().getException(), e));
+        } catch (NoClassDefFoundError e) {
+            logException(new ExtensionException(
+                    "Unable to instantiate implementation of "
+                            + extensionPoint.getLabel()
+                            + " plugin for language '"
+                            + language
+                            + "' because it may not have a public zero argument constructor, or some class referenced by the plugin could not be found in the class path.",
+                    e));
         }
-        
+
         return null;
     }
 
@@ -364,30 +333,30 @@ public class ExtensionFactory {
      * @param extensionPoint extension point identifier
      * @param the label of the attribute that contains the resource URL
      */
-    @SuppressWarnings("deprecation")
     public static URL createResourceURL(String language,
             IExtensionPoint extensionPoint, String label) {
-        IConfigurationElement[] elements = extensionPoint
-                .getConfigurationElements();
-        String lowerLabel = label.toLowerCase();
-        String lowerLang = language.toLowerCase();
-
-        if (elements != null) {
-            for (int n = 0; n < elements.length; n++) {
-                IConfigurationElement element = elements[n];
-                Bundle bundle = Platform.getBundle(element
-                        .getDeclaringExtension().getNamespace());
-
-                if (bundle != null) {
-                    final String attrValue = element
-                            .getAttribute(Language.LANGUAGE_ID_ATTR);
-
-                    if (attrValue != null
-                            && lowerLang.equals(attrValue.toLowerCase())) {
-                        String resourceName = element.getAttribute(lowerLabel);
-                        return bundle.getResource(resourceName);
-                    }
+        List<IConfigurationElement> elements = ExtensionIndex.getInstance()
+                .getElements(extensionPoint, language);
+
+        if (!elements.isEmpty()) {
+            IConfigurationElement element = elements.get(0);
+            Bundle bundle = ContributorFactoryOSGi.resolve(element.getContributor());
+
+            if (bundle != null) {
+                String resourceName = element.getAttribute(label.toLowerCase());
+
+                if (!Platform.isFragment(bundle)) {
+                    return bundle.getResource(resourceName);
+                }
+                // Fragments have no class loader of their own, so look in the fragment
+                // itself first, and then on the class path of its host
+                URL url = bundle.getEntry(resourceName);
+                Bundle[] hosts = Platform.getHosts(bundle);
+
+                for (int i = 0; url == null && hosts != null && i < hosts.length; i++) {
+                    url = hosts[i].getResource(resourceName);
                 }
+                return url;
             }
         }
 
@@ -0,0 +1,120 @@
+package io.usethesource.impulse.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.runtime.IConfigurationElement;
+import org.eclipse.core.runtime.IExtension;
+import org.eclipse.core.runtime.IExtensionPoint;
+import org.eclipse.core.runtime.IRegistryEventListener;
+import org.eclipse.core.runtime.InvalidRegistryObjectException;
+import org.eclipse.core.runtime.Platform;
+
+import io.usethesource.impulse.language.Language;
+
+/**
+ * Maps each (extension point, language) pair to the configuration elements contributed
+ * to that extension point for that language, so that looking up a language service
+ * doesn't require a scan of all the extension point's configuration elements.<br>
+ * An extension point is indexed in a single scan, the first time it is asked for (or
+ * when {@link #index(Iterable)} is called at startup). The index listens to the
+ * extension registry, and drops the entries of extension points whose extensions
+ * change; they are re-indexed on demand.
+ */
+public class ExtensionIndex implements IRegistryEventListener {
+    private static final ExtensionIndex sInstance= new ExtensionIndex();
+
+    /**
+     * Maps the unique identifier of each indexed extension point to its configuration
+     * elements by lower-case language name, in registry order
+     */
+    private final Map<String, Map<String, List<IConfigurationElement>>> fIndex= new HashMap<String, Map<String, List<IConfigurationElement>>>();
+
+    private ExtensionIndex() { }
+
+    public static ExtensionIndex getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Indexes the given extension points, unless already indexed.
+     * @param extensionPointIDs the unique identifiers of the extension points
+     */
+    public synchronized void index(Iterable<String> extensionPointIDs) {
+        for(String extensionPointID: extensionPointIDs) {
+            IExtensionPoint extensionPoint= Platform.getExtensionRegistry().getExtensionPoint(extensionPointID);
+
+            if (extensionPoint != null) {
+                getIndex(extensionPoint);
+            }
+        }
+    }
+
+    /**
+     * @return the configuration elements contributed to the given extension point for the
+     * language with the given name, whose contributing bundle is available, in registry
+     * order
+     */
+    public synchronized List<IConfigurationElement> getElements(IExtensionPoint extensionPoint, String languageName) {
+        List<IConfigurationElement> elements= getIndex(extensionPoint).get(languageName.toLowerCase());
+
+        return (elements != null) ? elements : Collections.<IConfigurationElement>emptyList();
+    }
+
+    private Map<String, List<IConfigurationElement>> getIndex(IExtensionPoint extensionPoint) {
+        String extensionPointID= extensionPoint.getUniqueIdentifier();
+        Map<String, List<IConfigurationElement>> index= fIndex.get(extensionPointID);
+
+        if (index == null) {
+            index= new HashMap<String, List<IConfigurationElement>>();
+            try {
+                for(IConfigurationElement element: extensionPoint.getConfigurationElements()) {
+                    String languageName= element.getAttribute(Language.LANGUAGE_ID_ATTR);
+
+                    if (languageName == null || Platform.getBundle(element.getContributor().getName()) == null) {
+                        continue;
+                    }
+                    List<IConfigurationElement> elements= index.get(languageName.toLowerCase());
+
+                    if (elements == null) {
+                        elements= new ArrayList<IConfigurationElement>(1);
+                        index.put(languageName.toLowerCase(), elements);
+                    }
+                    elements.add(element);
+                }
+            } catch (InvalidRegistryObjectException e) {
+                // The extension point was removed while being scanned; don't keep a partial index
+                return index;
+            }
+            fIndex.put(extensionPointID, index);
+        }
+        return index;
+    }
+
+    public synchronized void added(IExtension[] extensions) {
+        for(IExtension extension: extensions) {
+            fIndex.remove(extension.getExtensionPointUniqueIdentifier());
+        }
+    }
+
+    public synchronized void removed(IExtension[] extensions) {
+        for(IExtension extension: extensions) {
+            fIndex.remove(extension.getExtensionPointUniqueIdentifier());
+        }
+    }
+
+    public synchronized void added(IExtensionPoint[] extensionPoints) {
+        for(IExtensionPoint extensionPoint: extensionPoints) {
+            fIndex.remove(extensionPoint.getUniqueIdentifier());
+        }
+    }
+
+    public synchronized void removed(IExtensionPoint[] extensionPoints) {
+        for(IExtensionPoint extensionPoint: extensionPoints) {
+            fIndex.remove(extensionPoint.getUniqueIdentifier());
+        }
+    }
+}